@@ -0,0 +1,49 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts heap bytes allocated while handling something (e.g. one inbound chat line), using
+ * HotSpot's per-thread allocation counter. On JVMs or threads without that counter it just
+ * counts events.
+ */
+public class AllocationMeter {
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong measured = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private static com.sun.management.ThreadMXBean threads() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) bean;
+            if (!t.isThreadAllocatedMemorySupported()) return null;
+            t.setThreadAllocatedMemoryEnabled(true);
+            return t;
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread, or -1 if unknown. Pass it to end().
+     */
+    public long start() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public void end(long start) {
+        events.incrementAndGet();
+        if (start < 0) return;
+        long now = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        if (now < start) return;
+        measured.incrementAndGet();
+        bytes.addAndGet(now - start);
+    }
+
+    public String summary(String what) {
+        long n = measured.get();
+        return events.get() + " " + what + (n == 0 ? "" : ", avg " + bytes.get() / n + " bytes allocated each");
+    }
+}
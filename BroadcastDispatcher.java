@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads broadcast fan-out over several dispatcher threads ("shards"), one per core by default.
+ *
+ * Every client is assigned to one shard when it logs in. A broadcast is published once as a
+ * single Delivery that each shard picks up from its own queue; a shard then queues the shared
+ * encoded line for its own clients only (for a room, only its members of that room). The
+ * sending thread returns as soon as the delivery is queued. Each shard's queue is FIFO and a
+ * sender publishes in order, so every recipient sees one sender's lines in the order sent.
+ */
+public class BroadcastDispatcher {
+    /**
+     * One broadcast line for the members of room, or for every client when room is null.
+     */
+    static final class Delivery {
+        final HistoryRing.Entry entry;
+        final ChatRoom room;
+
+        Delivery(HistoryRing.Entry entry, ChatRoom room) {
+            this.entry = entry;
+            this.room = room;
+        }
+    }
+
+    private static final int MAX_BATCH = 256;
+    // queued by close() to wake the shard threads
+    private static final Delivery STOP = new Delivery(null, null);
+
+    private final Shard[] shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /**
+     * @param metrics gets the fan-out time of every delivery and the lines handed out
+     */
+    public BroadcastDispatcher(int shardCount, int queueCapacity, Metrics metrics) {
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i, Math.max(16, queueCapacity), metrics);
+            shards[i].thread.start();
+        }
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Assigns a newly logged in client to a shard (round robin); call before it joins rooms.
+     */
+    public void register(ClientConnection client) {
+        int shard = Math.floorMod(nextShard.getAndIncrement(), shards.length);
+        client.setShard(shard);
+        shards[shard].clients.add(client);
+    }
+
+    public void unregister(ClientConnection client) {
+        shards[client.getShard()].clients.remove(client);
+    }
+
+    /**
+     * Hands a broadcast to the shards that have recipients for it. Blocks only when a shard
+     * is a whole queue behind, which pushes back on senders.
+     */
+    public void publish(HistoryRing.Entry entry, ChatRoom room) {
+        Delivery d = new Delivery(entry, room);
+        for (Shard s : shards) {
+            // a small room touches only the shards its members live on
+            if (room != null && room.shardMembers(s.id).isEmpty()) continue;
+            s.put(d);
+        }
+    }
+
+    /**
+     * Deliveries waiting in all shard queues.
+     */
+    public int queueDepth() {
+        int n = 0;
+        for (Shard s : shards) n += s.queue.size();
+        return n;
+    }
+
+    /**
+     * Per shard: clients, deliveries and lines handed out, current and highest queue depth.
+     */
+    public String statsSummary() {
+        StringBuilder sb = new StringBuilder();
+        long deliveries = 0;
+        long lines = 0;
+        for (Shard s : shards) {
+            deliveries += s.deliveries;
+            lines += s.lines;
+        }
+        sb.append(shards.length).append(" shards, ").append(deliveries).append(" deliveries, ")
+                .append(lines).append(" lines");
+        for (Shard s : shards) {
+            sb.append("\n  shard ").append(s.id).append(": ").append(s.clients.size()).append(" clients, ")
+                    .append(s.deliveries).append(" deliveries, ").append(s.lines).append(" lines, queue ")
+                    .append(s.queue.size()).append(" (max ").append(s.maxDepth).append(')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Delivers what is already queued, then stops the shard threads.
+     */
+    public void close() {
+        for (Shard s : shards) s.queue.offer(STOP);
+        for (Shard s : shards) {
+            try {
+                s.thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Shard implements Runnable {
+        final int id;
+        final BlockingQueue<Delivery> queue;
+        final Set<ClientConnection> clients = ConcurrentHashMap.newKeySet();
+        final Thread thread;
+        final Metrics metrics;
+        // written by the shard thread only
+        volatile long deliveries;
+        volatile long lines;
+        volatile int maxDepth;
+
+        Shard(int id, int capacity, Metrics metrics) {
+            this.id = id;
+            this.metrics = metrics;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this, "dispatch-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        void put(Delivery d) {
+            try {
+                queue.put(d);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Delivery> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int depth = queue.drainTo(batch, MAX_BATCH - 1) + 1;
+                if (depth > maxDepth) maxDepth = depth;
+                for (Delivery d : batch) {
+                    if (d == STOP) return;
+                    long t0 = System.nanoTime();
+                    Set<ClientConnection> targets = d.room == null ? clients : d.room.shardMembers(id);
+                    int n = 0;
+                    for (ClientConnection c : targets) {
+                        c.send(d.entry.forClient(c));
+                        n++;
+                    }
+                    metrics.fanout.recordSince(t0);
+                    metrics.messagesOut.add(n);
+                    deliveries++;
+                    lines += n;
+                }
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Line protocol helpers shared by the server and the clients.
+ *
+ * Plain clients send their username as the first line and receive chat lines as-is.
+ * Clients that can resume send "/resume <epoch> <lastSeq> <username>" instead; the server
+ * answers "/resume <epoch> <headSeq>", replays only the lines after lastSeq (when the
+ * epoch still matches) and from then on prefixes every chat line with "#<seq> ".
+ */
+public final class ChatProtocol {
+    public static final String RESUME = "/resume";
+    // "/history <fromSeq> <toSeq>" or "/history <minutes>m": replay part of the server log
+    public static final String HISTORY = "/history";
+    // "/search words [user:name] [since:2h] [from:..] [to:..] [limit:N]": full-text search
+    public static final String SEARCH = "/search";
+    // "/join <room>", "/leave [room]", "/rooms": room membership; plain lines go to the current room
+    public static final String JOIN = "/join";
+    public static final String LEAVE = "/leave";
+    public static final String ROOMS = "/rooms";
+    // "/msg <user> <text>": direct message, delivered later if the user is offline
+    public static final String MSG = "/msg";
+    // room every client is put in at login; its lines carry no room tag
+    public static final String LOBBY = "lobby";
+
+    private ChatProtocol() {}
+
+    /**
+     * Encodes a chat line as UTF-8 plus '\n' into a read-only buffer that can be shared.
+     */
+    public static ByteBuffer encodeLine(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] line = Arrays.copyOf(text, text.length + 1);
+        line[text.length] = '\n';
+        return ByteBuffer.wrap(line).asReadOnlyBuffer();
+    }
+
+    /**
+     * "[username]: " as UTF-8, the start of every chat line from that user.
+     */
+    public static byte[] linePrefix(String username) {
+        return ("[" + username + "]: ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static ByteBuffer encodeSequenced(long seq, String message) {
+        return encodeLine("#" + seq + " " + message);
+    }
+
+    public static String resumeRequest(long epoch, long lastSeq, String username) {
+        return RESUME + " " + epoch + " " + lastSeq + " " + username;
+    }
+
+    public static String resumeReply(long epoch, long headSeq) {
+        return RESUME + " " + epoch + " " + headSeq;
+    }
+
+    /**
+     * Parsed "/resume" line: epoch, sequence number and (for requests) the username.
+     */
+    public static final class Resume {
+        public final long epoch;
+        public final long seq;
+        public final String username;
+
+        Resume(long epoch, long seq, String username) {
+            this.epoch = epoch;
+            this.seq = seq;
+            this.username = username;
+        }
+    }
+
+    /**
+     * Parses a resume request or reply; returns null if the line is not one.
+     */
+    public static Resume parseResume(String line) {
+        if (line == null || !line.startsWith(RESUME + " ")) return null;
+        String[] parts = line.split(" ", 4);
+        if (parts.length < 3) return null;
+        try {
+            return new Resume(Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    parts.length > 3 ? parts[3] : "");
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Room names are 1-32 letters, digits, '-' or '_'.
+     */
+    public static boolean isValidRoomName(String name) {
+        return name != null && name.matches("[A-Za-z0-9_-]{1,32}");
+    }
+
+    /**
+     * Usernames may not start with '#' or contain '[', ']' or whitespace: a line's room and
+     * sender are read back from its "[#room] [name]: " prefix, which a name must not fake.
+     */
+    public static boolean isValidUsername(String name) {
+        if (name == null || name.isEmpty() || name.charAt(0) == '#') return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '[' || c == ']' || Character.isWhitespace(c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The name with the characters isValidUsername() rejects removed; may come out empty.
+     */
+    public static String cleanUsername(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c != '[' && c != ']' && c != '#' && !Character.isWhitespace(c)) sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Tags a line with its room: "[#room] text". Lobby lines stay untagged.
+     */
+    public static String roomLine(String room, String message) {
+        return room == null || LOBBY.equals(room) ? message : "[#" + room + "] " + message;
+    }
+
+    /**
+     * Room of a tagged line, or LOBBY for an untagged one.
+     */
+    public static String roomOf(String line) {
+        if (line == null || !line.startsWith("[#")) return LOBBY;
+        int end = line.indexOf("] ");
+        return end > 2 ? line.substring(2, end) : LOBBY;
+    }
+
+    /**
+     * Line without its "[#room] " tag.
+     */
+    public static String stripRoom(String line) {
+        if (line == null || !line.startsWith("[#")) return line;
+        int end = line.indexOf("] ");
+        return end > 2 ? line.substring(end + 2) : line;
+    }
+
+    /**
+     * Sender of a "[name]: text" line (after any room tag is stripped), or null if it has none.
+     */
+    public static String senderOf(String line) {
+        if (line == null || !line.startsWith("[")) return null;
+        int end = line.indexOf("]: ");
+        return end > 1 ? line.substring(1, end) : null;
+    }
+
+    /**
+     * Sequence number of a "#<seq> text" line, or -1 if the line is not sequenced.
+     */
+    public static long sequenceOf(String line) {
+        if (line == null || line.length() < 3 || line.charAt(0) != '#') return -1;
+        int space = line.indexOf(' ');
+        if (space < 2) return -1;
+        try {
+            return Long.parseLong(line.substring(1, space));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Text of a sequenced line without its "#<seq> " prefix.
+     */
+    public static String stripSequence(String line) {
+        return line.substring(line.indexOf(' ') + 1);
+    }
+}
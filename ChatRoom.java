@@ -0,0 +1,75 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named chat room: the clients subscribed to it and a ring of its recent lines.
+ * Rooms are created on the first join and dropped by the Server when the last member
+ * leaves; the lobby, which every client joins on login, always exists.
+ *
+ * Members are also kept per BroadcastDispatcher shard, so each shard walks only its own.
+ */
+public class ChatRoom {
+    private final String name;
+    // "[#name] " as UTF-8, empty for the lobby; put in front of raw inbound lines
+    private final byte[] tag;
+    private final Set<ClientConnection> members = ConcurrentHashMap.newKeySet();
+    private final Set<ClientConnection>[] byShard;
+    private final HistoryRing history;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ChatRoom(String name, int historyLimit, int shards) {
+        this.name = name;
+        this.tag = ChatProtocol.roomLine(name, "").getBytes(StandardCharsets.UTF_8);
+        this.history = new HistoryRing(historyLimit);
+        this.byShard = new Set[Math.max(1, shards)];
+        for (int i = 0; i < byShard.length; i++) byShard[i] = ConcurrentHashMap.newKeySet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] tag() {
+        return tag;
+    }
+
+    public boolean isLobby() {
+        return ChatProtocol.LOBBY.equals(name);
+    }
+
+    /**
+     * Live view of the current members; change them through add() and remove().
+     */
+    public Set<ClientConnection> members() {
+        return members;
+    }
+
+    /**
+     * Live view of the members served by one dispatcher shard.
+     */
+    public Set<ClientConnection> shardMembers(int shard) {
+        return byShard[shard];
+    }
+
+    public void add(ClientConnection client) {
+        members.add(client);
+        byShard[client.getShard() % byShard.length].add(client);
+    }
+
+    public void remove(ClientConnection client) {
+        members.remove(client);
+        byShard[client.getShard() % byShard.length].remove(client);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Recent lines of this room, numbered per room (not the global sequence).
+     */
+    public HistoryRing history() {
+        return history;
+    }
+}
@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * A connected chat client as seen by the Server, independent of how its socket
+ * is serviced (a blocking ClientHandler thread or an NIO event loop).
+ */
+public interface ClientConnection {
+    String getUsername();
+
+    void setUsername(String username);
+
+    /**
+     * "[username]: " as UTF-8, built when the name is set so chat lines can be encoded
+     * straight from the bytes the client sent.
+     */
+    byte[] linePrefix();
+
+    /**
+     * True for clients that resumed with a sequence number and get "#<seq> " prefixed lines.
+     */
+    boolean isSequenced();
+
+    void setSequenced(boolean sequenced);
+
+    /**
+     * True once the client has switched to the binary protocol (see Frames), and whether it
+     * takes compressed frames.
+     */
+    boolean isFramed();
+
+    boolean acceptsDeflate();
+
+    /**
+     * Room that plain chat lines from this client go to; null after leaving every room.
+     */
+    ChatRoom getRoom();
+
+    void setRoom(ChatRoom room);
+
+    /**
+     * Rooms this client is a member of (kept in step with ChatRoom.members() by the Server).
+     */
+    Set<ChatRoom> getRooms();
+
+    /**
+     * BroadcastDispatcher shard that delivers broadcasts to this client, set once at login.
+     */
+    int getShard();
+
+    void setShard(int shard);
+
+    void sendMessage(String message);
+
+    /**
+     * Sends an already encoded line (UTF-8 plus '\n'). The buffer is read-only and shared
+     * by every recipient of a broadcast, so implementations must read it through
+     * duplicate() and never change its position.
+     */
+    void send(ByteBuffer line);
+
+    /**
+     * Messages waiting in the client's outbound queue.
+     */
+    int queueDepth();
+
+    /**
+     * Describes how many messages went out per socket write, for diagnostics.
+     */
+    String flushSummary();
+}
@@ -5,6 +5,12 @@ import java.awt.*;
 // ...existing code...
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Simple Swing client GUI. Connects to a server via TCP, sends username as first line,
@@ -25,6 +31,11 @@ public class ClientGUI extends JFrame {
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
+    // binary protocol streams, used instead of in/out when the server accepted frames
+    private DataInputStream framesIn;
+    private OutputStream framesOut;
+    private volatile boolean framed;
+    private boolean deflate;
     private Thread readerThread;
     private String clientName;
 
@@ -33,6 +44,8 @@ public class ClientGUI extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(600, 400);
         setLocationRelativeTo(null);
+        // closing the window exits; keep the resume position written since the last save
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveResumePosition, "save-resume-position"));
         // Use Nimbus look-and-feel if available for a modern UI
         try {
             for (UIManager.LookAndFeelInfo info : UIManager.getInstalledLookAndFeels()) {
@@ -126,22 +139,74 @@ public class ClientGUI extends JFrame {
 
         try {
             socket = new Socket(host, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            if (!negotiateFrames()) {
+                // no answer: a line-only server has taken the handshake as our name, so start over
+                socket.close();
+                socket = new Socket(host, port);
+                framed = false;
+            }
+            if (!framed) {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new PrintWriter(socket.getOutputStream(), true);
+            }
 
-            // Send username first
-            out.println(username);
             // prepare or load local history for this username
             ensureLocalHistory(username);
-            appendMessage("[Client]: Connected to server as " + username);
+            // Send username first, asking the server to resume after the last line we stored
+            sendLine(ChatProtocol.resumeRequest(resumeEpoch, lastSeq, username));
+            appendMessage("[Client]: Connected to server as " + username + (framed ? " (binary protocol)" : ""));
 
             readerThread = new Thread(() -> {
+                // the server starts live delivery before its resume reply and replay, so a line
+                // can arrive twice; sequenced lines are shown once. Those before the reply wait
+                // for it: up to its head the replay repeats them in order, newer ones are kept
+                boolean replied = false;
+                long resumedAfter = 0;
+                List<Long> earlySeqs = new ArrayList<>();
+                List<String> earlyLines = new ArrayList<>();
+                Set<Long> seen = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                        return size() > SEEN_SEQS;
+                    }
+                });
                 try {
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        appendMessage(line);
-                        // append to local history file
-                        appendToLocalHistory(line);
+                    while (true) {
+                        String line;
+                        long seq;
+                        if (framed) {
+                            Frames.Frame frame = Frames.read(framesIn);
+                            if (frame == null) break;
+                            line = frame.toLine();
+                            seq = frame.seq;
+                        } else {
+                            line = in.readLine();
+                            if (line == null) break;
+                            seq = ChatProtocol.sequenceOf(line);
+                            if (seq > 0) line = ChatProtocol.stripSequence(line);
+                        }
+                        ChatProtocol.Resume reply = ChatProtocol.parseResume(line);
+                        if (reply != null) {
+                            // a new server run numbers lines from scratch
+                            if (reply.epoch != resumeEpoch) lastSeq = 0;
+                            resumeEpoch = reply.epoch;
+                            replied = true;
+                            resumedAfter = lastSeq;
+                            for (int i = 0; i < earlySeqs.size(); i++) {
+                                long s = earlySeqs.get(i);
+                                if (s > reply.seq && s > resumedAfter && seen.add(s)) receiveLine(earlyLines.get(i), s);
+                            }
+                            earlySeqs.clear();
+                            earlyLines.clear();
+                            continue;
+                        }
+                        if (seq > 0 && !replied) {
+                            earlySeqs.add(seq);
+                            earlyLines.add(line);
+                            continue;
+                        }
+                        if (seq > 0 && (seq <= resumedAfter || !seen.add(seq))) continue;
+                        receiveLine(line, seq);
                     }
                 } catch (IOException e) {
                     appendMessage("[Client]: Connection lost - " + e.getMessage());
@@ -163,13 +228,41 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    // shows a received line and stores it locally; seq is 0 for unsequenced lines
+    private void receiveLine(String line, long seq) {
+        if (seq > 0) lastSeq = Math.max(lastSeq, seq);
+        appendMessage(line);
+        // append to local history file
+        appendToLocalHistory(line);
+        if (seq > 0 && System.currentTimeMillis() - resumeSavedAt >= RESUME_SAVE_INTERVAL_MS) {
+            saveResumePosition();
+        }
+    }
+
     private File localHistoryFile;
+    // older local history is moved into a gzip archive once the file grows past this
+    private static final long LOCAL_HISTORY_ROTATE_BYTES = 1024 * 1024;
+    // resume position: server run (epoch) and last sequence number stored locally
+    private File resumeFile;
+    private volatile long resumeEpoch;
+    private volatile long lastSeq;
+    // sequence numbers remembered per connection to drop lines that arrive twice
+    private static final int SEEN_SEQS = 10000;
+    // lastSeq is kept in memory and written at most this often, and on disconnect and exit
+    private static final long RESUME_SAVE_INTERVAL_MS = 1000;
+    // how long the server may take to answer the frames handshake
+    private static final int HANDSHAKE_TIMEOUT_MS = 3000;
+    private volatile long resumeSavedAt;
+    private long savedEpoch;
+    private long savedSeq;
 
     private void ensureLocalHistory(String username) {
+        loadResumePosition(username);
         try {
             localHistoryFile = new File(username + "_history.txt");
             if (!localHistoryFile.exists()) localHistoryFile.createNewFile();
-            // load and display existing history
+            HistoryArchive.rotateIfLarger(localHistoryFile, LOCAL_HISTORY_ROTATE_BYTES);
+            // load and display existing history (archived lines are only shown in View History)
             try (BufferedReader br = new BufferedReader(new FileReader(localHistoryFile))) {
                 String l;
                 while ((l = br.readLine()) != null) {
@@ -181,6 +274,40 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    private synchronized void loadResumePosition(String username) {
+        resumeFile = new File(username + "_history.seq");
+        resumeEpoch = 0;
+        lastSeq = 0;
+        if (resumeFile.exists()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(resumeFile))) {
+                String[] parts = br.readLine().trim().split(" ");
+                resumeEpoch = Long.parseLong(parts[0]);
+                lastSeq = Long.parseLong(parts[1]);
+            } catch (IOException | RuntimeException e) {
+                // unreadable position just means a full history replay
+                resumeEpoch = 0;
+                lastSeq = 0;
+            }
+        }
+        savedEpoch = resumeEpoch;
+        savedSeq = lastSeq;
+    }
+
+    // called from the reader thread, the EDT and the shutdown hook
+    private synchronized void saveResumePosition() {
+        resumeSavedAt = System.currentTimeMillis();
+        long epoch = resumeEpoch;
+        long seq = lastSeq;
+        if (resumeFile == null || (epoch == savedEpoch && seq == savedSeq)) return;
+        try (FileWriter fw = new FileWriter(resumeFile, false)) {
+            fw.write(epoch + " " + seq);
+            savedEpoch = epoch;
+            savedSeq = seq;
+        } catch (IOException e) {
+            appendMessage("[Client]: Failed to save resume position - " + e.getMessage());
+        }
+    }
+
     private void appendToLocalHistory(String line) {
         if (localHistoryFile == null) return;
         try (FileWriter fw = new FileWriter(localHistoryFile, true);
@@ -204,10 +331,7 @@ public class ClientGUI extends JFrame {
         }
         try {
             StringBuilder sb = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(new FileReader(localHistoryFile))) {
-                String l;
-                while ((l = br.readLine()) != null) sb.append(l).append('\n');
-            }
+            HistoryArchive.readAll(localHistoryFile, l -> sb.append(l).append('\n'));
             JTextArea area = new JTextArea(sb.toString());
             area.setEditable(false);
             area.setFont(new Font("Segoe UI", Font.PLAIN, 12));
@@ -222,6 +346,7 @@ public class ClientGUI extends JFrame {
     private void disconnect() {
         appendMessage("[Client]: Disconnecting");
         closeSocket();
+        saveResumePosition();
         connectButton.setEnabled(true);
         disconnectButton.setEnabled(false);
         sendButton.setEnabled(false);
@@ -229,22 +354,69 @@ public class ClientGUI extends JFrame {
         portField.setEnabled(true);
     }
 
+    /**
+     * Asks the server for the binary protocol (see Frames). The answer is read byte by byte
+     * so nothing after it is buffered away; a server that declines leaves us on lines.
+     * Returns false when no handshake answer came within HANDSHAKE_TIMEOUT_MS: the server
+     * only speaks lines and took the handshake for a login, so the connection is spoiled.
+     */
+    private boolean negotiateFrames() throws IOException {
+        framed = false;
+        OutputStream rawOut = socket.getOutputStream();
+        rawOut.write((Frames.handshake(true) + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        rawOut.flush();
+        InputStream rawIn = socket.getInputStream();
+        ByteArrayOutputStream answer = new ByteArrayOutputStream();
+        int b;
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        try {
+            while ((b = rawIn.read()) >= 0 && b != '\n') answer.write(b);
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        String reply = answer.toString("UTF-8").trim();
+        if (!reply.startsWith(Frames.HANDSHAKE + " ")) return false;
+        if (reply.startsWith(Frames.handshake(false))) {
+            framed = true;
+            deflate = Boolean.TRUE.equals(Frames.parseHandshake(reply));
+            framesIn = new DataInputStream(new BufferedInputStream(rawIn));
+            framesOut = new BufferedOutputStream(rawOut);
+        }
+        return true;
+    }
+
+    private void sendLine(String text) throws IOException {
+        if (framed) {
+            Frames.writeText(framesOut, text, deflate);
+        } else {
+            out.println(text);
+        }
+    }
+
     private void closeSocket() {
         try { if (out != null) out.close(); } catch (Exception ignored) {}
+        try { if (framesOut != null) framesOut.close(); } catch (Exception ignored) {}
         try { if (in != null) in.close(); } catch (Exception ignored) {}
         try { if (socket != null && !socket.isClosed()) socket.close(); } catch (Exception ignored) {}
         out = null; in = null; socket = null;
+        framesOut = null; framesIn = null;
         if (readerThread != null && readerThread.isAlive()) readerThread.interrupt();
     }
 
     private void sendMessage() {
         String text = inputField.getText().trim();
         if (text.isEmpty()) return;
-        if (out == null) {
+        if (out == null && framesOut == null) {
             appendMessage("[Client]: Not connected");
             return;
         }
-        out.println(text);
+        try {
+            sendLine(text);
+        } catch (IOException e) {
+            appendMessage("[Client]: Send failed - " + e.getMessage());
+        }
         // do not locally append the sent message — server will broadcast it back
         inputField.setText("");
     }
@@ -253,53 +425,7 @@ public class ClientGUI extends JFrame {
         SwingUtilities.invokeLater(() -> {
             try {
                 StyledDocument doc = messagePane.getStyledDocument();
-                Style defaultStyle = messagePane.getStyle(StyleContext.DEFAULT_STYLE);
-                Style regular = doc.getStyle("regular");
-                if (regular == null) {
-                    regular = doc.addStyle("regular", defaultStyle);
-                    StyleConstants.setFontFamily(regular, "Segoe UI");
-                    StyleConstants.setFontSize(regular, 14);
-                }
-
-                // Create colored styles for server, self, and others
-                Style serverStyle = doc.getStyle("server");
-                if (serverStyle == null) {
-                    serverStyle = doc.addStyle("server", regular);
-                    StyleConstants.setForeground(serverStyle, UIStyles.COLOR_SERVER);
-                    StyleConstants.setItalic(serverStyle, true);
-                }
-                Style selfStyle = doc.getStyle("self");
-                if (selfStyle == null) {
-                    selfStyle = doc.addStyle("self", regular);
-                    StyleConstants.setForeground(selfStyle, UIStyles.COLOR_SELF);
-                    StyleConstants.setBold(selfStyle, true);
-                }
-                Style otherStyle = doc.getStyle("other");
-                if (otherStyle == null) {
-                    otherStyle = doc.addStyle("other", regular);
-                    StyleConstants.setForeground(otherStyle, UIStyles.COLOR_OTHER);
-                }
-                Style systemStyle = doc.getStyle("system");
-                if (systemStyle == null) {
-                    systemStyle = doc.addStyle("system", regular);
-                    StyleConstants.setForeground(systemStyle, UIStyles.COLOR_SYSTEM);
-                }
-
-                // Decide style based on message prefix
-                Style chosen = regular;
-                if (msg.startsWith("[Client]:") || msg.startsWith("[Client]")) {
-                    chosen = systemStyle;
-                } else if (msg.startsWith("[")) {
-                    int end = msg.indexOf("]");
-                    if (end > 1) {
-                        String name = msg.substring(1, end);
-                        if (name.equals(clientName)) chosen = selfStyle;
-                        else if (name.equalsIgnoreCase("Server")) chosen = serverStyle;
-                        else chosen = otherStyle;
-                    }
-                }
-
-                doc.insertString(doc.getLength(), msg + "\n", chosen);
+                doc.insertString(doc.getLength(), msg + "\n", resolveStyle(doc, msg, clientName));
                 messagePane.setCaretPosition(doc.getLength());
             } catch (BadLocationException e) {
                 // fallback
@@ -307,4 +433,59 @@ public class ClientGUI extends JFrame {
             }
         });
     }
+
+    /**
+     * Style a line is shown in, creating the styles in doc on first use. Static and free of
+     * Swing components so the benchmarks can run it headless.
+     */
+    static Style resolveStyle(StyledDocument doc, String msg, String clientName) {
+        Style defaultStyle = doc.getStyle(StyleContext.DEFAULT_STYLE);
+        Style regular = doc.getStyle("regular");
+        if (regular == null) {
+            regular = doc.addStyle("regular", defaultStyle);
+            StyleConstants.setFontFamily(regular, "Segoe UI");
+            StyleConstants.setFontSize(regular, 14);
+        }
+
+        // Create colored styles for server, self, and others
+        Style serverStyle = doc.getStyle("server");
+        if (serverStyle == null) {
+            serverStyle = doc.addStyle("server", regular);
+            StyleConstants.setForeground(serverStyle, UIStyles.COLOR_SERVER);
+            StyleConstants.setItalic(serverStyle, true);
+        }
+        Style selfStyle = doc.getStyle("self");
+        if (selfStyle == null) {
+            selfStyle = doc.addStyle("self", regular);
+            StyleConstants.setForeground(selfStyle, UIStyles.COLOR_SELF);
+            StyleConstants.setBold(selfStyle, true);
+        }
+        Style otherStyle = doc.getStyle("other");
+        if (otherStyle == null) {
+            otherStyle = doc.addStyle("other", regular);
+            StyleConstants.setForeground(otherStyle, UIStyles.COLOR_OTHER);
+        }
+        Style systemStyle = doc.getStyle("system");
+        if (systemStyle == null) {
+            systemStyle = doc.addStyle("system", regular);
+            StyleConstants.setForeground(systemStyle, UIStyles.COLOR_SYSTEM);
+        }
+
+        // Decide style based on message prefix
+        Style chosen = regular;
+        if (msg.startsWith("[Client]:") || msg.startsWith("[Client]")) {
+            chosen = systemStyle;
+        } else if (msg.startsWith("[")) {
+            // "[#room] [name]: text" is styled by the sender, like a lobby line
+            String body = ChatProtocol.stripRoom(msg);
+            int end = body.indexOf("]");
+            if (end > 1) {
+                String name = body.substring(1, end);
+                if (name.equals(clientName)) chosen = selfStyle;
+                else if (name.equalsIgnoreCase("Server")) chosen = serverStyle;
+                else chosen = otherStyle;
+            }
+        }
+        return chosen;
+    }
 }
@@ -1,64 +1,226 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientConnection {
     private Socket socket;
     private Server server;
-    private BufferedReader in;
-    private PrintWriter out;
-    private String username = "Unknown";
+    private LineReader in;
+    private WritableByteChannel out;
+    // filled by broadcasters with shared encoded lines, drained by this client's writer task
+    private final OutboundQueue<ByteBuffer> outbound;
+    private volatile String username = "Unknown";
+    private volatile byte[] linePrefix = ChatProtocol.linePrefix(username);
+    private volatile boolean sequenced;
+    private volatile boolean framed;
+    private volatile boolean deflate;
+    private volatile ChatRoom room;
+    private final Set<ChatRoom> rooms = ConcurrentHashMap.newKeySet();
+    private volatile int shard;
 
     public ClientHandler(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
+        this.outbound = server.newOutboundQueue();
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new LineReader(socket.getInputStream(), 512);
+            // sockets accepted by Server have a channel; plain sockets fall back to a stream wrapper
+            out = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
         } catch (IOException e) {
-            System.err.println("[ClientHandler]: Error setting up streams - " + e.getMessage());
+            Log.warn("[ClientHandler]: Error setting up streams - " + e.getMessage());
             close();
         }
     }
 
+    @Override
     public String getUsername() {
         return username;
     }
 
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+        this.linePrefix = ChatProtocol.linePrefix(username);
+    }
+
+    @Override
+    public byte[] linePrefix() {
+        return linePrefix;
+    }
+
+    @Override
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    @Override
+    public void setSequenced(boolean sequenced) {
+        this.sequenced = sequenced;
+    }
+
+    @Override
+    public boolean isFramed() {
+        return framed;
+    }
+
+    @Override
+    public boolean acceptsDeflate() {
+        return deflate;
+    }
+
+    @Override
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    @Override
+    public Set<ChatRoom> getRooms() {
+        return rooms;
+    }
+
+    @Override
+    public int getShard() {
+        return shard;
+    }
+
+    @Override
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    @Override
     public void sendMessage(String message) {
-        out.println(message);
+        send(framed ? Frames.encodeText(message, deflate) : ChatProtocol.encodeLine(message));
+    }
+
+    @Override
+    public void send(ByteBuffer line) {
+        // never blocks the broadcasting thread; the writer task does the socket I/O
+        if (!outbound.offer(line)) {
+            server.slowConsumerDisconnected(this);
+            close();
+        }
+    }
+
+    @Override
+    public int queueDepth() {
+        return outbound.size();
+    }
+
+    @Override
+    public String flushSummary() {
+        return outbound.flushSummary();
+    }
+
+    /**
+     * Writer task: takes everything pending (optionally lingering up to maxLatencyMs for
+     * more) and sends it with one gathering write instead of one write per line.
+     */
+    private void writeLoop() {
+        ServerConfig config = server.getConfig();
+        int maxBatch = config.outboundMaxBatch;
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.outboundMaxLatencyMs);
+        List<ByteBuffer> batch = new ArrayList<>();
+        ByteBuffer[] views = new ByteBuffer[16];
+        try {
+            ByteBuffer first;
+            while ((first = outbound.take()) != null) {
+                batch.add(first);
+                outbound.drainTo(batch, maxBatch - 1, maxWaitNanos);
+                int n = batch.size();
+                if (views.length < n) views = new ByteBuffer[Math.max(n, views.length * 2)];
+                for (int i = 0; i < n; i++) views[i] = batch.get(i).duplicate();
+                writeFully(views, n);
+                outbound.recordFlush(n);
+                Arrays.fill(views, 0, n, null);
+                batch.clear();
+            }
+        } catch (IOException | InterruptedException e) {
+            // reader side notices the broken socket and cleans up
+            close();
+        }
+    }
+
+    private void writeFully(ByteBuffer[] views, int n) throws IOException {
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel g = (GatheringByteChannel) out;
+            int start = 0;
+            while (start < n) {
+                g.write(views, start, n - start);
+                while (start < n && !views[start].hasRemaining()) start++;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                while (views[i].hasRemaining()) out.write(views[i]);
+            }
+        }
     }
 
     @Override
     public void run() {
+        server.execute(this::writeLoop);
         try {
-            // Protocol: first line from client is the username
+            // Protocol: first line from client is the username (or a resume handshake),
+            // optionally preceded by a switch to frames
             String nameLine = in.readLine();
-            if (nameLine != null && !nameLine.trim().isEmpty()) {
-                username = nameLine.trim();
+            Boolean offer = Frames.parseHandshake(nameLine);
+            if (offer != null) {
+                ServerConfig config = server.getConfig();
+                if (config.framesEnabled) {
+                    deflate = offer && config.framesCompress;
+                    sendMessage(Frames.handshake(deflate));
+                    framed = true;
+                    nameLine = readFrame();
+                } else {
+                    sendMessage(Frames.decline());
+                    nameLine = in.readLine();
+                }
             }
-            System.out.println("[Server]: " + username + " joined");
-            // send recent history to this client before broadcasting join
-            server.sendHistoryTo(this);
-            server.broadcast("[Server]: " + username + " has joined the chat", this);
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                String formatted = "[" + username + "]: " + line;
-                System.out.println("[Server]: Received - " + formatted);
-                server.broadcast(formatted, this);
+            server.clientJoined(this, nameLine);
+
+            if (framed) {
+                String line;
+                while ((line = readFrame()) != null) {
+                    server.messageReceived(this, line);
+                }
+            } else {
+                // lines stay bytes in the reader's buffer; the server decodes them only if it must
+                int n;
+                while ((n = in.readLineBytes()) >= 0) {
+                    server.messageReceived(this, in.lineBuffer(), n);
+                }
             }
         } catch (IOException e) {
-            System.err.println("[ClientHandler]: Connection error for " + username + " - " + e.getMessage());
+            Log.warn("[ClientHandler]: Connection error for " + username + " - " + e.getMessage());
         } finally {
             close();
-            server.removeClient(this);
-            server.broadcast("[Server]: " + username + " has left the chat", this);
+            server.clientLeft(this);
         }
     }
 
+    // text of the next frame, kept on one line; null at end of stream
+    private String readFrame() throws IOException {
+        byte[] head = new byte[4];
+        if (!in.readFully(head, 0, 4)) return null;
+        int length = Frames.checkLength(ByteBuffer.wrap(head).getInt());
+        byte[] body = new byte[length];
+        if (!in.readFully(body, 0, length)) throw new EOFException("truncated frame");
+        return Frames.toSingleLine(Frames.decode(body, 0, length).payload);
+    }
+
     private void close() {
+        outbound.close();
         try { if (in != null) in.close(); } catch (IOException ignored) {}
-        if (out != null) out.close();
+        try { if (out != null) out.close(); } catch (IOException ignored) {}
         try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
     }
 }
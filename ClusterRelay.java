@@ -0,0 +1,374 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links Server instances ("nodes") over TCP so a broadcast on one node reaches the clients
+ * of every node.
+ *
+ * Every broadcast that starts on this node is numbered (origin node id plus a per-node
+ * sequence number) and sent to each connected peer as one text line:
+ *   <origin> <seq> <room or *> <message>
+ * Peers hand it to their Server exactly once: a node remembers the highest sequence number it
+ * delivered from each origin and drops anything at or below it. Each link is a TCP stream in
+ * origin order, so delivery is in origin order as well.
+ *
+ * The nodes form a full mesh (messages are not forwarded), so every node must be linked to
+ * every other one; listing a peer on both sides is fine, duplicates are dropped. On connect
+ * both sides send "/peer <id> <incarnation>" and answer "/since <seq>" with the last sequence
+ * number they delivered from the other, and the other side replays its recent messages after
+ * that, so a dropped link loses nothing still in the replay buffer. The delivered sequence
+ * numbers are saved to a state file every second and on close, so a restarted node does not
+ * take into its history again what it already had (after a crash, at most a second's worth).
+ */
+public class ClusterRelay {
+    static final String EVERYONE = "*";
+    private static final String HELLO = "/peer";
+    private static final String SINCE = "/since";
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 10000;
+    private static final long SAVE_INTERVAL_MS = 1000;
+    // queued by PeerLink.close() to wake its writer
+    private static final String WAKEUP = new String("");
+
+    /**
+     * Highest sequence number delivered from one origin node, for its current incarnation.
+     */
+    private static final class OriginState {
+        long incarnation;
+        long seq;
+    }
+
+    private final Server server;
+    private final String nodeId;
+    // a restarted node numbers from 1 again; peers tell its runs apart by this
+    private final long incarnation = System.currentTimeMillis();
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final int queueCapacity;
+    // our own recent frames by seq % length, replayed to peers that reconnect
+    private final String[] replay;
+    private long originSeq; // guarded by this
+    private final Set<PeerLink> live = new CopyOnWriteArraySet<>();
+    private final ConcurrentHashMap<String, OriginState> delivered = new ConcurrentHashMap<>();
+    private final File stateFile;
+    private volatile boolean dirty;
+    // listener and dialers; links end when their socket is closed
+    private final List<Thread> threads = new ArrayList<>();
+    private ServerSocket listener;
+    private volatile boolean running = true;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * @param port  port peers connect to, 0 = only dial out
+     * @param peers "host:port,host:port" of other nodes to dial (may be empty)
+     * @param stateFile where delivered sequence numbers are kept across restarts (may be null)
+     */
+    public ClusterRelay(Server server, String nodeId, int port, String peers, File stateFile,
+                        int replayCapacity, int queueCapacity) {
+        this.server = server;
+        this.stateFile = stateFile;
+        this.nodeId = nodeId.replaceAll("\\s+", "_");
+        this.port = port;
+        this.peers = parsePeers(peers);
+        this.replay = new String[Math.max(1, replayCapacity)];
+        this.queueCapacity = Math.max(replay.length + 1024, queueCapacity);
+    }
+
+    static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> out = new ArrayList<>();
+        if (peers == null) return out;
+        for (String p : peers.split(",")) {
+            p = p.trim();
+            if (p.isEmpty()) continue;
+            int colon = p.lastIndexOf(':');
+            try {
+                out.add(InetSocketAddress.createUnresolved(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1))));
+            } catch (RuntimeException e) {
+                Log.warn("[Cluster]: Ignoring bad peer address " + p);
+            }
+        }
+        return out;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void start() throws IOException {
+        loadState();
+        if (stateFile != null) threads.add(spawn(this::saveLoop, "cluster-state"));
+        if (port > 0) {
+            listener = new ServerSocket(port);
+            threads.add(spawn(this::acceptLoop, "cluster-listener"));
+            Log.info("[Cluster]: Node " + nodeId + " listening for peers on port " + port);
+        }
+        for (InetSocketAddress peer : peers) {
+            threads.add(spawn(() -> dialLoop(peer), "cluster-dialer-" + peer.getHostString() + ":" + peer.getPort()));
+        }
+    }
+
+    private static Thread spawn(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Sends a broadcast that started on this node to every peer. scope is a room name or
+     * EVERYONE for a server-wide line.
+     */
+    public synchronized void publish(String scope, String message) {
+        long seq = ++originSeq;
+        String frame = nodeId + " " + seq + " " + scope + " " + message;
+        replay[(int) (seq % replay.length)] = frame;
+        for (PeerLink link : live) link.offer(frame);
+        published.incrementAndGet();
+    }
+
+    // replays our frames after seq to a newly connected peer, then makes it live
+    private synchronized void attach(PeerLink link, long after) {
+        long from = Math.max(after + 1, originSeq - replay.length + 1);
+        if (from > after + 1) {
+            Log.warn("[Cluster]: " + link.peerId + " missed " + (from - after - 1)
+                    + " messages older than the replay buffer");
+        }
+        for (long s = from; s <= originSeq; s++) link.offer(replay[(int) (s % replay.length)]);
+        live.add(link);
+        Log.info("[Cluster]: Linked to " + link.peerId + " at " + link.socket.getRemoteSocketAddress()
+                + ", replayed " + Math.max(0, originSeq - from + 1) + " messages");
+    }
+
+    // last sequence number delivered from peerId's current run
+    private long lastDelivered(String peerId, long peerIncarnation) {
+        OriginState state = delivered.computeIfAbsent(peerId, k -> new OriginState());
+        synchronized (state) {
+            if (state.incarnation != peerIncarnation) {
+                state.incarnation = peerIncarnation;
+                state.seq = 0;
+            }
+            return state.seq;
+        }
+    }
+
+    private void deliver(PeerLink link, String frame) {
+        // <origin> <seq> <scope> <message>
+        int a = frame.indexOf(' ');
+        int b = a < 0 ? -1 : frame.indexOf(' ', a + 1);
+        int c = b < 0 ? -1 : frame.indexOf(' ', b + 1);
+        if (c < 0) {
+            Log.warn("[Cluster]: Bad frame from " + link.peerId);
+            return;
+        }
+        String origin = frame.substring(0, a);
+        long seq;
+        try {
+            seq = Long.parseLong(frame.substring(a + 1, b));
+        } catch (NumberFormatException e) {
+            Log.warn("[Cluster]: Bad frame from " + link.peerId);
+            return;
+        }
+        if (origin.equals(nodeId)) return;
+        OriginState state = delivered.computeIfAbsent(origin, k -> new OriginState());
+        // held while delivering, so two links carrying the same origin can not reorder it
+        synchronized (state) {
+            if (seq <= state.seq) {
+                duplicates.incrementAndGet();
+                return;
+            }
+            if (seq > state.seq + 1) missed.addAndGet(seq - state.seq - 1);
+            state.seq = seq;
+            dirty = true;
+            received.incrementAndGet();
+            server.relayedFromPeer(origin, frame.substring(b + 1, c), frame.substring(c + 1));
+        }
+    }
+
+    // "<origin> <incarnation> <seq>" per line
+    private void loadState() {
+        if (stateFile == null || !stateFile.exists()) return;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), StandardCharsets.UTF_8))) {
+            String l;
+            while ((l = br.readLine()) != null) {
+                String[] parts = l.split(" ");
+                if (parts.length != 3) continue;
+                OriginState state = new OriginState();
+                state.incarnation = Long.parseLong(parts[1]);
+                state.seq = Long.parseLong(parts[2]);
+                delivered.put(parts[0], state);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.error("[Cluster]: Could not read " + stateFile.getName() + " - " + e.getMessage());
+        }
+    }
+
+    private void saveState() {
+        if (stateFile == null) return;
+        dirty = false;
+        StringBuilder sb = new StringBuilder();
+        delivered.forEach((origin, state) -> {
+            synchronized (state) {
+                sb.append(origin).append(' ').append(state.incarnation).append(' ').append(state.seq).append('\n');
+            }
+        });
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.error("[Cluster]: Could not save " + stateFile.getName() + " - " + e.getMessage());
+        }
+    }
+
+    private void saveLoop() {
+        while (running) {
+            try {
+                Thread.sleep(SAVE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (dirty) saveState();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                spawn(() -> new PeerLink(socket).run(), "cluster-peer-" + socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (running) Log.error("[Cluster]: Accept failed - " + e.getMessage());
+            }
+        }
+    }
+
+    private void dialLoop(InetSocketAddress peer) {
+        long backoff = 500;
+        while (running) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), CONNECT_TIMEOUT_MS);
+                PeerLink link = new PeerLink(socket);
+                link.run();
+                if (link.peerId != null) backoff = 500;
+            } catch (IOException e) {
+                // peer not up yet; keep trying
+            }
+            if (!running) return;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+        }
+    }
+
+    public String statsSummary() {
+        return "node " + nodeId + ", " + live.size() + " peers linked, " + published.get() + " sent, "
+                + received.get() + " received, " + duplicates.get() + " duplicates dropped, "
+                + missed.get() + " missed, " + overflows.get() + " link overflows";
+    }
+
+    public void close() {
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignored) {}
+        for (PeerLink link : live) link.close();
+        for (Thread t : threads) t.interrupt();
+        saveState();
+    }
+
+    /**
+     * One TCP connection to another node, dialed or accepted. The reading side runs on the
+     * calling thread; frames for the peer are written by a writer thread from a bounded queue.
+     */
+    private final class PeerLink {
+        final Socket socket;
+        final BlockingQueue<String> out = new LinkedBlockingQueue<>(queueCapacity);
+        volatile String peerId;
+        private volatile boolean closed;
+
+        PeerLink(Socket socket) {
+            this.socket = socket;
+        }
+
+        void offer(String frame) {
+            if (!out.offer(frame) && !closed) {
+                // the peer fell too far behind; it catches up from the replay buffer on reconnect
+                overflows.incrementAndGet();
+                Log.warn("[Cluster]: Link to " + peerId + " overflowed, reconnecting");
+                close();
+            }
+        }
+
+        void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer w = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                Thread writer = new Thread(() -> writeLoop(w), "cluster-writer");
+                writer.setDaemon(true);
+                writer.start();
+                out.add(HELLO + " " + nodeId + " " + incarnation);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(HELLO + " ")) {
+                        String[] parts = line.split(" ");
+                        peerId = parts[1];
+                        out.add(SINCE + " " + lastDelivered(peerId, Long.parseLong(parts[2])));
+                    } else if (line.startsWith(SINCE + " ")) {
+                        attach(this, Long.parseLong(line.substring(SINCE.length() + 1)));
+                    } else if (peerId != null) {
+                        deliver(this, line);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (running && !closed) Log.error("[Cluster]: Link to " + peerId + " failed - " + e.getMessage());
+            } finally {
+                close();
+                if (peerId != null && running) Log.info("[Cluster]: Lost link to " + peerId);
+            }
+        }
+
+        private void writeLoop(Writer w) {
+            try {
+                while (!closed) {
+                    String frame = out.take();
+                    do {
+                        if (frame == WAKEUP) return;
+                        w.write(frame);
+                        w.write('\n');
+                    } while ((frame = out.poll()) != null);
+                    w.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            live.remove(this);
+            out.clear();
+            out.offer(WAKEUP);
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only, block-compressed copy of a closed MessageLog segment.
+ *
+ * The records keep their segment layout but are cut into blocks of about blockBytes, each
+ * deflated on its own. A footer lists every block's first sequence number, first timestamp,
+ * file offset and sizes, so reading a range only inflates the blocks it overlaps.
+ */
+public class CompressedSegment extends MessageLog.Segment {
+    static final String SUFFIX = ".zlog";
+    private static final int MAGIC = 0x5A4C4F47;
+    private static final int BLOCK_ENTRY_BYTES = 32; // long firstSeq, long firstTime, long offset, int packed, int raw
+    private static final int TRAILER_BYTES = 32;     // int blocks, long lastSeq, long lastTime, long rawBytes, int magic
+
+    private static final AtomicLong BLOCKS_INFLATED = new AtomicLong();
+    private static final AtomicLong BYTES_INFLATED = new AtomicLong();
+    private static final AtomicLong INFLATE_NANOS = new AtomicLong();
+
+    private final File file;
+    // mapped once; positional channel reads would close the file for everyone if a reader is interrupted
+    private final MappedByteBuffer map;
+    private final long[] firstSeqs;
+    private final long[] firstTimes;
+    private final long[] offsets;
+    private final int[] packedSizes;
+    private final int[] rawSizes;
+    private final long rawBytes;
+    private final long fileBytes;
+
+    /**
+     * Opens an existing compressed segment by reading its footer.
+     */
+    public CompressedSegment(long baseSeq, File file) throws IOException {
+        super(baseSeq);
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            fileBytes = channel.size();
+            if (fileBytes < TRAILER_BYTES || fileBytes > Integer.MAX_VALUE) {
+                throw new IOException("bad size for " + file.getName());
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileBytes);
+            ByteBuffer trailer = readAt(fileBytes - TRAILER_BYTES, TRAILER_BYTES);
+            int blocks = trailer.getInt();
+            lastSeq = trailer.getLong();
+            lastTimestamp = trailer.getLong();
+            rawBytes = trailer.getLong();
+            if (trailer.getInt() != MAGIC || blocks < 0
+                    || (long) blocks * BLOCK_ENTRY_BYTES > fileBytes - TRAILER_BYTES) {
+                throw new IOException("bad footer in " + file.getName());
+            }
+            firstSeqs = new long[blocks];
+            firstTimes = new long[blocks];
+            offsets = new long[blocks];
+            packedSizes = new int[blocks];
+            rawSizes = new int[blocks];
+            ByteBuffer footer = readAt(fileBytes - TRAILER_BYTES - (long) blocks * BLOCK_ENTRY_BYTES,
+                    blocks * BLOCK_ENTRY_BYTES);
+            for (int i = 0; i < blocks; i++) {
+                firstSeqs[i] = footer.getLong();
+                firstTimes[i] = footer.getLong();
+                offsets[i] = footer.getLong();
+                packedSizes[i] = footer.getInt();
+                rawSizes[i] = footer.getInt();
+            }
+        }
+    }
+
+    /**
+     * Compresses the records in [0, records.limit()) into target (via a temporary file that is
+     * forced and renamed, so a crash never leaves a half-written segment) and opens it.
+     */
+    public static CompressedSegment write(File target, long baseSeq, ByteBuffer records,
+                                          int blockBytes, int level) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        Deflater deflater = new Deflater(level);
+        // firstSeq, firstTime, offset, packed size, raw size per block
+        List<long[]> index = new ArrayList<>();
+        long lastSeq = baseSeq - 1;
+        long lastTime = Long.MIN_VALUE;
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] raw = new byte[blockBytes];
+            byte[] packed = new byte[blockBytes / 2 + 64];
+            long offset = 0;
+            int p = 0;
+            int end = records.limit();
+            while (p + MessageLog.HEADER_BYTES <= end) {
+                // cut a block at a record boundary; a single oversized record gets a block of its own
+                int start = p;
+                long firstSeq = records.getLong(p + 4);
+                long firstTime = records.getLong(p + 12);
+                while (p + MessageLog.HEADER_BYTES <= end) {
+                    int len = MessageLog.HEADER_BYTES + records.getInt(p);
+                    if (p > start && p - start + len > blockBytes) break;
+                    lastSeq = records.getLong(p + 4);
+                    lastTime = records.getLong(p + 12);
+                    p += len;
+                }
+                int n = p - start;
+                if (raw.length < n) raw = new byte[n];
+                ByteBuffer src = records.duplicate();
+                src.limit(p).position(start);
+                src.get(raw, 0, n);
+
+                deflater.reset();
+                deflater.setInput(raw, 0, n);
+                deflater.finish();
+                int packedSize = 0;
+                while (!deflater.finished()) {
+                    int c = deflater.deflate(packed);
+                    ByteBuffer chunk = ByteBuffer.wrap(packed, 0, c);
+                    while (chunk.hasRemaining()) out.write(chunk, offset + packedSize + chunk.position());
+                    packedSize += c;
+                }
+                index.add(new long[] {firstSeq, firstTime, offset, packedSize, n});
+                offset += packedSize;
+            }
+
+            ByteBuffer footer = ByteBuffer.allocate(index.size() * BLOCK_ENTRY_BYTES + TRAILER_BYTES);
+            for (long[] b : index) {
+                footer.putLong(b[0]).putLong(b[1]).putLong(b[2]).putInt((int) b[3]).putInt((int) b[4]);
+            }
+            footer.putInt(index.size()).putLong(lastSeq).putLong(lastTime).putLong(end).putInt(MAGIC);
+            footer.flip();
+            while (footer.hasRemaining()) out.write(footer, offset + footer.position());
+            out.force(true);
+        } finally {
+            deflater.end();
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new CompressedSegment(baseSeq, target);
+    }
+
+    private ByteBuffer readAt(long position, int length) {
+        ByteBuffer buf = map.duplicate();
+        buf.limit((int) position + length).position((int) position);
+        return buf.slice();
+    }
+
+    @Override
+    int read(long fromSeq, long toSeq, long fromTime, Consumer<MessageLog.Record> action) {
+        int block = fromTime > Long.MIN_VALUE ? blockForTime(fromTime) : blockForSeq(fromSeq);
+        int visited = 0;
+        Inflater inflater = new Inflater();
+        try {
+            byte[] raw = new byte[0];
+            byte[] packed = new byte[0];
+            for (int b = block; b < firstSeqs.length && firstSeqs[b] <= toSeq; b++) {
+                long t0 = System.nanoTime();
+                if (raw.length < rawSizes[b]) raw = new byte[rawSizes[b]];
+                if (packed.length < packedSizes[b]) packed = new byte[packedSizes[b]];
+                readAt(offsets[b], packedSizes[b]).get(packed, 0, packedSizes[b]);
+                inflater.reset();
+                inflater.setInput(packed, 0, packedSizes[b]);
+                int n = 0;
+                while (n < rawSizes[b] && !inflater.finished()) {
+                    int c = inflater.inflate(raw, n, rawSizes[b] - n);
+                    if (c == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    n += c;
+                }
+                if (n != rawSizes[b]) throw new IOException("corrupt block " + b + " in " + file.getName());
+                BLOCKS_INFLATED.incrementAndGet();
+                BYTES_INFLATED.addAndGet(n);
+                INFLATE_NANOS.addAndGet(System.nanoTime() - t0);
+                visited += MessageLog.scanRecords(ByteBuffer.wrap(raw, 0, n), 0, fromSeq, toSeq, fromTime, action);
+            }
+        } catch (IOException | DataFormatException e) {
+            Log.error("[MessageLog]: Failed to read " + file.getName() + " - " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return visited;
+    }
+
+    // one read (and inflate) per block for all the seqs that fall into it
+    @Override
+    int readSeqs(long[] seqs, int from, int to, Consumer<MessageLog.Record> action) {
+        int[] visited = new int[1];
+        int i = from;
+        while (i < to) {
+            int b = blockForSeq(seqs[i]);
+            long blockEnd = b + 1 < firstSeqs.length ? firstSeqs[b + 1] : Long.MAX_VALUE;
+            int j = i + 1;
+            while (j < to && seqs[j] < blockEnd) j++;
+            int lo = i;
+            int hi = j;
+            read(seqs[i], seqs[j - 1], Long.MIN_VALUE, r -> {
+                if (Arrays.binarySearch(seqs, lo, hi, r.seq) >= 0) {
+                    action.accept(r);
+                    visited[0]++;
+                }
+            });
+            i = j;
+        }
+        return visited[0];
+    }
+
+    // last block starting at or before seq
+    private int blockForSeq(long seq) {
+        int lo = 0;
+        int hi = firstSeqs.length - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firstSeqs[mid] <= seq) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // last block starting before the given time
+    private int blockForTime(long time) {
+        int lo = 0;
+        int hi = firstTimes.length - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firstTimes[mid] < time) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Size of the records before compression.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    @Override
+    long bytesOnDisk() {
+        return fileBytes;
+    }
+
+    @Override
+    void close() {
+        // nothing open besides the mapping, which goes away with this object
+    }
+
+    @Override
+    void delete() {
+        // a mapped file cannot be deleted on Windows until the mapping is collected
+        if (!file.delete() && file.exists()) {
+            Log.error("[MessageLog]: Could not delete old segment " + file.getName());
+        }
+    }
+
+    public static String statsSummary() {
+        long blocks = BLOCKS_INFLATED.get();
+        long avgMicros = blocks == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(INFLATE_NANOS.get() / blocks);
+        return "inflated " + blocks + " blocks (" + BYTES_INFLATED.get() / 1024 + " KB, avg " + avgMicros + " us per block)";
+    }
+}
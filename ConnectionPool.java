@@ -0,0 +1,68 @@
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small fixed-size JDBC connection pool. Connections are opened lazily, reused across
+ * batches and replaced when they turn out to be broken.
+ */
+public class ConnectionPool {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final BlockingQueue<Connection> idle;
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String user, String password, int maxSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.idle = new ArrayBlockingQueue<>(this.maxSize);
+    }
+
+    /**
+     * Returns an idle connection, opening a new one while under the size limit,
+     * otherwise waiting for one to be released.
+     */
+    public Connection borrow() throws SQLException, InterruptedException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        Connection c = idle.poll();
+        if (c != null) return c;
+        int n = open.get();
+        while (n < maxSize) {
+            if (open.compareAndSet(n, n + 1)) {
+                try {
+                    return DriverManager.getConnection(url, user, password);
+                } catch (SQLException e) {
+                    open.decrementAndGet();
+                    throw e;
+                }
+            }
+            n = open.get();
+        }
+        return idle.take();
+    }
+
+    /**
+     * Gives a connection back; pass broken = true after an error so it is replaced.
+     */
+    public void release(Connection c, boolean broken) {
+        if (c == null) return;
+        if (broken || closed || !idle.offer(c)) {
+            open.decrementAndGet();
+            try { c.close(); } catch (SQLException ignored) {}
+        }
+    }
+
+    public void close() {
+        closed = true;
+        Connection c;
+        while ((c = idle.poll()) != null) {
+            open.decrementAndGet();
+            try { c.close(); } catch (SQLException ignored) {}
+        }
+    }
+}
@@ -1,9 +1,18 @@
 import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Optional lightweight helper to persist chat messages to a MySQL database.
  * To enable, configure DB_URL, DB_USER, DB_PASSWORD below and ensure the
  * MySQL JDBC driver is on the classpath when running the Server.
+ *
+ * insertMessage() never talks to the database itself: rows go into a bounded queue and
+ * a few writer threads, each with a pooled connection, insert them with JDBC batches
+ * once batchSize rows are waiting or flushMs has passed. When the database lags and the
+ * queue is full, rows are dropped and counted. Any JDBC URL works (-Dchat.db.url), so an
+ * embedded database can stand in for MySQL.
  */
 public class DBHelper {
     // Set these when you want to enable DB logging
@@ -11,34 +20,177 @@ public class DBHelper {
     private static final String DB_USER = "";
     private static final String DB_PASSWORD = "";
 
+    private static final String INSERT_SQL = "INSERT INTO chat_history(username, message, timestamp) VALUES (?, ?, ?)";
+
+    private static final class Row {
+        final String username;
+        final String message;
+        final Timestamp timestamp;
+
+        Row(String username, String message, Timestamp timestamp) {
+            this.username = username;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+    }
+
     private boolean configured;
+    private ConnectionPool pool;
+    private BlockingQueue<Row> queue;
+    private int batchSize;
+    private long flushNanos;
+    private long offerTimeoutMs;
+    private final List<Thread> writers = new ArrayList<>();
+    private volatile boolean running;
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // time insertMessage() takes the broadcasting thread, and one executeBatch round trip
+    private final LatencyHistogram insertTimes = new LatencyHistogram();
+    private final LatencyHistogram batchTimes = new LatencyHistogram();
 
     public DBHelper() {
-        configured = DB_URL != null && !DB_URL.isEmpty()
-                && DB_USER != null && !DB_USER.isEmpty();
-        if (configured) {
+        this(new ServerConfig());
+    }
+
+    public DBHelper(ServerConfig config) {
+        String url = config.dbUrl != null ? config.dbUrl : DB_URL;
+        String user = config.dbUser != null ? config.dbUser : DB_USER;
+        String password = config.dbPassword != null ? config.dbPassword : DB_PASSWORD;
+        configured = url != null && !url.isEmpty();
+        if (configured && url.startsWith("jdbc:mysql:")) {
             try {
                 // Try to load driver (modern drivers register automatically)
                 Class.forName("com.mysql.cj.jdbc.Driver");
             } catch (ClassNotFoundException e) {
-                System.err.println("[DBHelper]: MySQL driver not found on classpath");
+                Log.warn("[DBHelper]: MySQL driver not found on classpath");
                 configured = false;
             }
         }
+        if (!configured) return;
+
+        pool = new ConnectionPool(url, user, password, config.dbPoolSize);
+        queue = new ArrayBlockingQueue<>(Math.max(1, config.dbQueueCapacity));
+        batchSize = Math.max(1, config.dbBatchSize);
+        flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.dbFlushMs));
+        offerTimeoutMs = Math.max(0, config.dbOfferTimeoutMs);
+        running = true;
+        for (int i = 0; i < Math.max(1, config.dbPoolSize); i++) {
+            Thread t = new Thread(this::writeLoop, "db-writer-" + i);
+            t.setDaemon(true);
+            t.start();
+            writers.add(t);
+        }
     }
 
     public boolean isConfigured() { return configured; }
 
+    /**
+     * Queues a message for insertion. Waits at most dbOfferTimeoutMs for room in the
+     * queue, then drops the row and counts it.
+     */
     public void insertMessage(String username, String message) {
-        if (!configured) return;
-        String sql = "INSERT INTO chat_history(username, message, timestamp) VALUES (?, ?, NOW())";
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, username);
-            ps.setString(2, message);
-            ps.executeUpdate();
+        if (!configured || !running) return;
+        long t0 = System.nanoTime();
+        Row row = new Row(username, message, new Timestamp(System.currentTimeMillis()));
+        try {
+            boolean queued = offerTimeoutMs > 0
+                    ? queue.offer(row, offerTimeoutMs, TimeUnit.MILLISECONDS)
+                    : queue.offer(row);
+            if (!queued && dropped.incrementAndGet() % 1000 == 1) {
+                Log.warn("[DBHelper]: Database is lagging, dropping rows (" + statsSummary() + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            insertTimes.recordSince(t0);
+        }
+    }
+
+    private void writeLoop() {
+        List<Row> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Row first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                // keep filling until the batch is full or the oldest row has waited flushMs
+                long deadline = System.nanoTime() + flushNanos;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) break;
+                    Row next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next != null) batch.add(next);
+                }
+                insertBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void insertBatch(List<Row> batch) throws InterruptedException {
+        Connection conn = null;
+        boolean broken = false;
+        long t0 = System.nanoTime();
+        try {
+            conn = pool.borrow();
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_SQL)) {
+                for (Row r : batch) {
+                    ps.setString(1, r.username);
+                    ps.setString(2, r.message);
+                    ps.setTimestamp(3, r.timestamp);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            if (!conn.getAutoCommit()) conn.commit();
+            inserted.addAndGet(batch.size());
+            batches.incrementAndGet();
+            batchTimes.recordSince(t0);
         } catch (SQLException e) {
-            System.err.println("[DBHelper]: Failed to insert message - " + e.getMessage());
+            broken = true;
+            failed.addAndGet(batch.size());
+            Log.error("[DBHelper]: Failed to insert " + batch.size() + " messages - " + e.getMessage());
+        } finally {
+            pool.release(conn, broken);
+        }
+    }
+
+    public long getInserted() { return inserted.get(); }
+
+    public long getDropped() { return dropped.get(); }
+
+    public long getFailed() { return failed.get(); }
+
+    public int getQueueDepth() { return queue != null ? queue.size() : 0; }
+
+    public LatencyHistogram getInsertTimes() { return insertTimes; }
+
+    public LatencyHistogram getBatchTimes() { return batchTimes; }
+
+    public String statsSummary() {
+        return "inserted: " + inserted.get() + " in " + batches.get() + " batches, queued: " + getQueueDepth()
+                + ", dropped: " + dropped.get() + ", failed: " + failed.get();
+    }
+
+    /**
+     * Inserts whatever is still queued and closes the pooled connections.
+     */
+    public void close() {
+        if (!running) return;
+        running = false;
+        for (Thread t : writers) {
+            try {
+                t.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        pool.close();
     }
 }
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Length-prefixed binary protocol, an alternative to the line protocol.
+ *
+ * A client asks for it by sending "/frames 1 [deflate]" as its very first line. The server
+ * answers "/frames 1 [deflate]" (deflate only if both sides want it) and from then on both
+ * directions carry frames; the login line (username or "/resume ...") is the first frame.
+ * A server that has frames turned off answers "/frames 0" and the client carries on with
+ * lines. Clients that start with anything else keep the line protocol.
+ *
+ * Frame, big-endian:
+ *   int   length     bytes after this field
+ *   byte  type       TEXT (a command, a plain line or a notice) or CHAT (a chat line)
+ *   byte  flags      FLAG_DEFLATED: the payload is deflated
+ *   long  seq        server sequence number, 0 if none
+ *   short + bytes    room (UTF-8, empty for the lobby), CHAT only
+ *   short + bytes    sender (UTF-8), CHAT only
+ *   int              payload length before compression, deflated frames only
+ *   bytes            payload (UTF-8), up to the end of the frame
+ *
+ * Payloads may span several lines. The server keeps every message on one line internally by
+ * turning line breaks into LINE_SEPARATOR, which frames turn back into '\n'.
+ */
+public final class Frames {
+    public static final String HANDSHAKE = "/frames";
+    public static final int VERSION = 1;
+    public static final String DEFLATE = "deflate";
+
+    public static final byte TEXT = 1;
+    public static final byte CHAT = 2;
+    public static final int FLAG_DEFLATED = 1;
+    // a frame's length field must not exceed this
+    public static final int MAX_FRAME_BYTES = 1024 * 1024;
+    // payloads at least this long are deflated when the connection allows it
+    public static final int COMPRESS_MIN_BYTES = 512;
+    // stands in for a line break in a message kept on one line (U+2028 LINE SEPARATOR)
+    public static final char LINE_SEPARATOR = '\u2028';
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private Frames() {}
+
+    /**
+     * One decoded frame.
+     */
+    public static final class Frame {
+        public final byte type;
+        public final long seq;
+        public final String room;
+        public final String sender;
+        public final String payload;
+
+        Frame(byte type, long seq, String room, String sender, String payload) {
+            this.type = type;
+            this.seq = seq;
+            this.room = room;
+            this.sender = sender;
+            this.payload = payload;
+        }
+
+        /**
+         * The frame as the line protocol would show it, e.g. "[#dev] [alice]: hi".
+         */
+        public String toLine() {
+            if (type != CHAT) return payload;
+            return ChatProtocol.roomLine(room.isEmpty() ? null : room, "[" + sender + "]: " + payload);
+        }
+    }
+
+    /**
+     * Handshake line a client sends, or the server's answer.
+     */
+    public static String handshake(boolean deflate) {
+        return HANDSHAKE + " " + VERSION + (deflate ? " " + DEFLATE : "");
+    }
+
+    /**
+     * The server's answer when frames are turned off.
+     */
+    public static String decline() {
+        return HANDSHAKE + " 0";
+    }
+
+    /**
+     * Parses a handshake line: null if it is not one, else whether it offers deflate.
+     */
+    public static Boolean parseHandshake(String line) {
+        if (line == null || !line.startsWith(HANDSHAKE + " ")) return null;
+        String[] parts = line.split(" ");
+        return parts.length > 2 && DEFLATE.equals(parts[2]);
+    }
+
+    /**
+     * Text of a received payload as the server keeps it: one line, breaks as LINE_SEPARATOR.
+     */
+    public static String toSingleLine(String payload) {
+        if (payload.indexOf('\n') < 0 && payload.indexOf('\r') < 0) return payload;
+        return payload.replace("\r\n", "\n").replace('\r', '\n').replace('\n', LINE_SEPARATOR);
+    }
+
+    /**
+     * Frames a server line: "[#room] [sender]: text" becomes a CHAT frame, anything else TEXT.
+     */
+    public static ByteBuffer encodeLine(long seq, String line, boolean deflate) {
+        String room = ChatProtocol.roomOf(line);
+        String body = ChatProtocol.stripRoom(line);
+        String sender = ChatProtocol.senderOf(body);
+        if (sender == null) return encode(TEXT, seq, "", "", line, deflate);
+        return encode(CHAT, seq, ChatProtocol.LOBBY.equals(room) ? "" : room, sender,
+                body.substring(sender.length() + 4), deflate);
+    }
+
+    public static ByteBuffer encodeText(String text, boolean deflate) {
+        return encode(TEXT, 0, "", "", text, deflate);
+    }
+
+    /**
+     * Encodes a whole frame, length prefix included, into a read-only buffer that can be shared.
+     */
+    public static ByteBuffer encode(byte type, long seq, String room, String sender, String payload, boolean deflate) {
+        byte[] r = type == CHAT ? room.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        byte[] s = type == CHAT ? sender.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        byte[] p = payload.replace(LINE_SEPARATOR, '\n').getBytes(StandardCharsets.UTF_8);
+        int rawLength = p.length;
+        int flags = 0;
+        int packedLength = p.length;
+        if (deflate && p.length >= COMPRESS_MIN_BYTES) {
+            byte[] packed = deflate(p);
+            if (packed.length + 4 < p.length) {
+                p = packed;
+                packedLength = packed.length;
+                flags |= FLAG_DEFLATED;
+            }
+        }
+        int length = 1 + 1 + 8 + (type == CHAT ? 2 + r.length + 2 + s.length : 0)
+                + ((flags & FLAG_DEFLATED) != 0 ? 4 : 0) + packedLength;
+        ByteBuffer buf = ByteBuffer.allocate(4 + length);
+        buf.putInt(length).put(type).put((byte) flags).putLong(seq);
+        if (type == CHAT) {
+            buf.putShort((short) r.length).put(r);
+            buf.putShort((short) s.length).put(s);
+        }
+        if ((flags & FLAG_DEFLATED) != 0) buf.putInt(rawLength);
+        buf.put(p, 0, packedLength);
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decodes the bytes after a frame's length field.
+     */
+    public static Frame decode(byte[] body, int offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(body, offset, length);
+        try {
+            byte type = buf.get();
+            int flags = buf.get();
+            long seq = buf.getLong();
+            String room = "";
+            String sender = "";
+            if (type == CHAT) {
+                room = readString(buf);
+                sender = readString(buf);
+            }
+            String payload;
+            if ((flags & FLAG_DEFLATED) != 0) {
+                int rawLength = buf.getInt();
+                if (rawLength < 0 || rawLength > MAX_FRAME_BYTES * 8) throw new IOException("bad payload length " + rawLength);
+                payload = new String(inflate(body, buf.position(), buf.remaining(), rawLength), StandardCharsets.UTF_8);
+            } else {
+                payload = new String(body, buf.position(), buf.remaining(), StandardCharsets.UTF_8);
+            }
+            return new Frame(type, seq, room, sender, payload);
+        } catch (RuntimeException e) {
+            throw new IOException("malformed frame", e);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int n = buf.getShort() & 0xFFFF;
+        String s = new String(buf.array(), buf.position(), n, StandardCharsets.UTF_8);
+        buf.position(buf.position() + n);
+        return s;
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            byte[] raw = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int c = inflater.inflate(raw, n, rawLength - n);
+                if (c == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += c;
+            }
+            if (n != rawLength) throw new IOException("corrupt compressed payload");
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Checks a frame's length field; the caller then reads that many bytes and decodes them.
+     */
+    public static int checkLength(int length) throws IOException {
+        if (length < 10 || length > MAX_FRAME_BYTES) throw new IOException("bad frame length " + length);
+        return length;
+    }
+
+    /**
+     * Blocking read of the next frame; null at a clean end of stream.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = checkLength(in.readInt());
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(body, 0, length);
+    }
+
+    /**
+     * Writes a TEXT frame; used by clients for their login and chat lines.
+     */
+    public static void writeText(OutputStream out, String text, boolean deflate) throws IOException {
+        ByteBuffer frame = encodeText(text, deflate);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        out.write(bytes);
+        out.flush();
+    }
+}
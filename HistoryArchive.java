@@ -0,0 +1,127 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Rotation of plain-text history files (server_chat_history.txt, <username>_history.txt)
+ * into gzip archives.
+ *
+ * A file over the size limit is renamed to <name>.<timestamp>.txt, so appends carry on in a
+ * fresh small file, and the renamed copy is compressed to .txt.gz on a background thread.
+ * readAll() returns the archives, oldest first, followed by the live file.
+ */
+public final class HistoryArchive {
+    private static final String TXT = ".txt";
+    private static final String GZ = ".gz";
+
+    private HistoryArchive() {}
+
+    /**
+     * Rotates file if it is larger than maxBytes; returns true if it did. Also compresses any
+     * rotated copy a previous run did not get to finish.
+     */
+    public static boolean rotateIfLarger(File file, long maxBytes) throws IOException {
+        List<File> pending = new ArrayList<>();
+        for (File f : archivesOf(file)) {
+            if (!f.getName().endsWith(GZ)) pending.add(f);
+        }
+        boolean rotated = false;
+        if (maxBytes > 0 && file.length() > maxBytes) {
+            String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            File target = new File(file.getAbsoluteFile().getParentFile(), stem(file) + "." + stamp + TXT);
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            file.createNewFile();
+            pending.add(target);
+            rotated = true;
+        }
+        if (!pending.isEmpty()) {
+            Thread t = new Thread(() -> {
+                for (File f : pending) compress(f);
+            }, "history-archiver");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.start();
+        }
+        return rotated;
+    }
+
+    private static void compress(File plain) {
+        File gz = new File(plain.getPath() + GZ);
+        File tmp = new File(gz.getPath() + ".tmp");
+        try {
+            try (InputStream in = new FileInputStream(plain);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024)) {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            }
+            Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Log.info("[HistoryArchive]: Compressed " + plain.getName() + " " + plain.length() / 1024
+                    + " KB -> " + gz.length() / 1024 + " KB");
+            plain.delete();
+        } catch (IOException e) {
+            Log.error("[HistoryArchive]: Could not compress " + plain.getName() + " - " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Passes every line of the archives (oldest first) and then of file itself to action.
+     * An archive that cannot be read is logged and skipped.
+     */
+    public static void readAll(File file, Consumer<String> action) throws IOException {
+        for (File f : archivesOf(file)) {
+            try (InputStream raw = new FileInputStream(f);
+                 InputStream in = f.getName().endsWith(GZ) ? new GZIPInputStream(raw, 64 * 1024) : raw) {
+                readLines(in, action);
+            } catch (IOException e) {
+                // one damaged archive should not hide the others and the live file
+                Log.warn("[HistoryArchive]: Skipping unreadable " + f.getName() + " - " + e.getMessage());
+            }
+        }
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                readLines(in, action);
+            }
+        }
+    }
+
+    private static void readLines(InputStream in, Consumer<String> action) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String l;
+            while ((l = br.readLine()) != null) action.accept(l);
+        }
+    }
+
+    // rotated copies of file, oldest first; a finished .gz wins over its plain original
+    private static List<File> archivesOf(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = stem(file) + ".";
+        File[] found = dir.listFiles((d, name) -> name.startsWith(prefix)
+                && (name.endsWith(TXT) || name.endsWith(TXT + GZ)));
+        TreeMap<String, File> byStamp = new TreeMap<>();
+        if (found != null) {
+            for (File f : found) {
+                String name = f.getName();
+                int end = name.lastIndexOf(TXT);
+                if (end <= prefix.length()) continue; // the live file itself
+                String stamp = name.substring(prefix.length(), end);
+                if (!stamp.matches("[0-9-]+")) continue;
+                File seen = byStamp.get(stamp);
+                if (seen == null || name.endsWith(GZ)) byStamp.put(stamp, f);
+            }
+        }
+        return new ArrayList<>(byStamp.values());
+    }
+
+    private static String stem(File file) {
+        String name = file.getName();
+        return name.endsWith(TXT) ? name.substring(0, name.length() - TXT.length()) : name;
+    }
+}
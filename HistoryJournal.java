@@ -0,0 +1,234 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Append-only history journal. Broadcasting threads only hand history entries to a queue;
+ * a single background thread writes them through one long-lived FileChannel in batches
+ * (group commit) and forces them to disk according to the fsync policy. Entries are written
+ * in sequence order, and also appended to the segmented MessageLog when one is configured.
+ */
+public class HistoryJournal {
+    public enum FsyncPolicy { NEVER, INTERVAL, BATCH }
+
+    private static final int MAX_BATCH = 1024;
+    // queued by close() to wake the writer; interrupting it would close the FileChannel
+    private static final HistoryRing.Entry WAKEUP = new HistoryRing.Entry(-1, 0, "", ByteBuffer.allocate(0));
+    private static final int TAIL_CHUNK = 64 * 1024;
+    // give up waiting for a missing sequence number after this long
+    private static final long GAP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final FileChannel channel;
+    private final MessageLog messageLog;
+    private final BlockingQueue<HistoryRing.Entry> queue;
+    // concurrent broadcasters may enqueue out of order; park entries until their turn
+    private final PriorityQueue<HistoryRing.Entry> parked = new PriorityQueue<>(Comparator.comparingLong(e -> e.seq));
+    private long nextSeq;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final Thread writer;
+    private volatile boolean running = true;
+    // written by the journal thread only
+    private volatile long batches;
+    private volatile long lines;
+    private volatile long fsyncs;
+
+    /**
+     * @param messageLog optional segmented log that receives the same entries (may be null)
+     * @param firstSeq   sequence number of the first entry that will be appended
+     */
+    public HistoryJournal(File file, MessageLog messageLog, long firstSeq, int capacity,
+                          FsyncPolicy fsyncPolicy, long fsyncIntervalMs) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        terminateLastLine(file);
+        this.messageLog = messageLog;
+        this.nextSeq = firstSeq;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMs));
+        this.writer = new Thread(this::writeLoop, "history-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a history entry. Only blocks if the journal is a full queue behind,
+     * which pushes back on senders instead of silently losing history.
+     */
+    public void append(HistoryRing.Entry entry) {
+        if (!running) return;
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // a crash mid-write can leave a partial last line; start new lines on a fresh one
+    private void terminateLastLine(File file) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size == 0 || in.read(last, size - 1) < 1) return;
+        }
+        if (last.get(0) != '\n') channel.write(ByteBuffer.wrap(new byte[] {'\n'}));
+    }
+
+    /**
+     * Reads the last maxLines lines of a journal file by scanning backward from the end with
+     * positional reads, so the cost depends on maxLines, not on how large the file has grown.
+     */
+    public static List<String> readTail(File file, int maxLines) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (maxLines <= 0 || !file.exists()) return lines;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = ch.size();
+            long start = 0;
+            long pos = end;
+            int newlines = 0;
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(TAIL_CHUNK, Math.max(1, end)));
+            scan:
+            while (pos > 0) {
+                int len = (int) Math.min(chunk.capacity(), pos);
+                pos -= len;
+                chunk.clear().limit(len);
+                while (chunk.hasRemaining()) {
+                    if (ch.read(chunk, pos + chunk.position()) < 0) break;
+                }
+                for (int i = len - 1; i >= 0; i--) {
+                    // the terminator of the very last line does not start a new one
+                    if (chunk.get(i) == '\n' && pos + i != end - 1 && ++newlines == maxLines) {
+                        start = pos + i + 1;
+                        break scan;
+                    }
+                }
+            }
+            ByteBuffer tail = ByteBuffer.allocate((int) (end - start));
+            while (tail.hasRemaining()) {
+                if (ch.read(tail, start + tail.position()) < 0) break;
+            }
+            byte[] bytes = tail.array();
+            int from = 0;
+            for (int i = 0; i <= tail.position(); i++) {
+                if (i == tail.position() || bytes[i] == '\n') {
+                    int to = i;
+                    if (to > from && bytes[to - 1] == '\r') to--;
+                    if (to > from) lines.add(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+                    from = i + 1;
+                }
+            }
+        }
+        return lines;
+    }
+
+    private void writeLoop() {
+        List<HistoryRing.Entry> drained = new ArrayList<>();
+        List<HistoryRing.Entry> batch = new ArrayList<>();
+        ByteBuffer[] views = new ByteBuffer[16];
+        long lastSync = System.nanoTime();
+        boolean dirty = false;
+        long gapSince = 0;
+        while (running || !queue.isEmpty() || !parked.isEmpty()) {
+            try {
+                HistoryRing.Entry first = queue.poll(fsyncIntervalNanos, TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    drained.add(first);
+                    queue.drainTo(drained, MAX_BATCH - 1);
+                    for (HistoryRing.Entry e : drained) {
+                        if (e != WAKEUP) parked.add(e);
+                    }
+                    drained.clear();
+                }
+                if (!parked.isEmpty() && parked.peek().seq > nextSeq) {
+                    // a sender between HistoryRing.add() and append(); skip it if it never shows up
+                    long now = System.nanoTime();
+                    if (gapSince == 0) gapSince = now;
+                    if (now - gapSince > GAP_TIMEOUT_NANOS || !running) nextSeq = parked.peek().seq;
+                }
+                while (!parked.isEmpty() && parked.peek().seq <= nextSeq) {
+                    HistoryRing.Entry e = parked.poll();
+                    nextSeq = Math.max(nextSeq, e.seq + 1);
+                    batch.add(e);
+                    gapSince = 0;
+                }
+                if (!batch.isEmpty()) {
+                    int n = batch.size();
+                    if (views.length < n) views = new ByteBuffer[Math.max(n, views.length * 2)];
+                    for (int i = 0; i < n; i++) views[i] = batch.get(i).line.duplicate();
+                    writeFully(views, n);
+                    if (messageLog != null) appendToLog(batch);
+                    Arrays.fill(views, 0, n, null);
+                    batch.clear();
+                    batches++;
+                    lines += n;
+                    dirty = true;
+                }
+                long now = System.nanoTime();
+                if (dirty && (fsyncPolicy == FsyncPolicy.BATCH
+                        || (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncIntervalNanos))) {
+                    channel.force(false);
+                    if (messageLog != null) messageLog.force();
+                    fsyncs++;
+                    lastSync = now;
+                    dirty = false;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("[Server]: Failed to write history - " + e.getMessage());
+                batch.clear();
+            }
+        }
+    }
+
+    private void appendToLog(List<HistoryRing.Entry> batch) throws IOException {
+        for (HistoryRing.Entry e : batch) {
+            ByteBuffer text = e.line.duplicate();
+            text.limit(text.limit() - 1); // without the '\n'
+            messageLog.append(e.seq, e.timestamp, text);
+        }
+        messageLog.flush();
+    }
+
+    private void writeFully(ByteBuffer[] views, int n) throws IOException {
+        int start = 0;
+        while (start < n) {
+            channel.write(views, start, n - start);
+            while (start < n && !views[start].hasRemaining()) start++;
+        }
+    }
+
+    public String statsSummary() {
+        long b = batches;
+        return lines + " lines in " + b + " batches, " + fsyncs + " fsyncs (" + fsyncPolicy.name().toLowerCase()
+                + "), queued: " + queue.size();
+    }
+
+    /**
+     * Writes whatever is still queued, forces it to disk and closes the file.
+     */
+    public void close() {
+        if (!running) return;
+        running = false;
+        queue.offer(WAKEUP);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                channel.force(false);
+                if (messageLog != null) messageLog.force();
+            }
+            channel.close();
+        } catch (IOException e) {
+            Log.error("[Server]: Error closing history journal - " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Fixed-capacity, lock-free ring of recent chat lines. Every line gets a monotonically
+ * increasing sequence number (starting at 1). Any number of threads may add; readers walk
+ * a consistent sequence range straight out of the preallocated slots without copying.
+ */
+public class HistoryRing {
+    /**
+     * One history line: its sequence number, time (epoch millis), text and shared encoded form.
+     */
+    public static final class Entry {
+        public final long seq;
+        public final long timestamp;
+        public final ByteBuffer line;
+        // null for lines that arrived as bytes until something asks for it
+        private volatile String text;
+        // "#<seq> text" form for resume-capable clients, encoded on first use
+        private volatile ByteBuffer sequencedLine;
+        // binary frames for framed clients, without and with compression, encoded on first use
+        private volatile ByteBuffer frame;
+        private volatile ByteBuffer deflatedFrame;
+
+        Entry(long seq, long timestamp, String text, ByteBuffer line) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.text = text;
+            this.line = line;
+        }
+
+        /**
+         * The line's text, decoded from its encoded form on first use when it was created
+         * without one.
+         */
+        public String text() {
+            String t = text;
+            if (t == null) {
+                ByteBuffer b = line.duplicate();
+                b.limit(b.limit() - 1); // without the '\n'
+                text = t = StandardCharsets.UTF_8.decode(b).toString();
+            }
+            return t;
+        }
+
+        public ByteBuffer sequencedLine() {
+            ByteBuffer s = sequencedLine;
+            if (s == null) sequencedLine = s = ChatProtocol.encodeSequenced(seq, text());
+            return s;
+        }
+
+        public ByteBuffer frame(boolean deflate) {
+            ByteBuffer f = deflate ? deflatedFrame : frame;
+            if (f == null) {
+                f = Frames.encodeLine(seq, text(), deflate);
+                if (deflate) deflatedFrame = f; else frame = f;
+            }
+            return f;
+        }
+
+        /**
+         * The shared encoding client reads: a frame, a "#<seq> " line or the plain line.
+         */
+        public ByteBuffer forClient(ClientConnection client) {
+            if (client.isFramed()) return frame(client.acceptsDeflate());
+            return client.isSequenced() ? sequencedLine() : line;
+        }
+    }
+
+    private final int limit;
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots;
+    // next sequence number to hand out
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    // highest sequence number whose slot, and every earlier one, has been written
+    private final AtomicLong published = new AtomicLong(0);
+
+    /**
+     * @param limit how many recent lines readers see; the ring keeps twice that many slots
+     *              so a slow writer is not overwritten by faster ones before it publishes
+     */
+    public HistoryRing(int limit) {
+        this.limit = limit;
+        int capacity = Integer.highestOneBit(Math.max(2, limit * 2 - 1)) << 1;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Adds a line; text may be null, it is then decoded from line only when needed.
+     */
+    public Entry add(String text, ByteBuffer line) {
+        return insert(new Entry(nextSeq.getAndIncrement(), System.currentTimeMillis(), text, line));
+    }
+
+    /**
+     * Startup only, before any concurrent add(): puts back a line recovered from disk under
+     * its original sequence number. Sequence numbers must be restored in increasing order.
+     */
+    public Entry restore(long seq, long timestamp, String text, ByteBuffer line) {
+        if (seq < nextSeq.get()) throw new IllegalArgumentException("seq " + seq + " is not after " + lastSeq());
+        nextSeq.set(seq + 1);
+        published.set(seq - 1);
+        return insert(new Entry(seq, timestamp, text, line));
+    }
+
+    /**
+     * Next sequence number add() will hand out.
+     */
+    public long nextSeq() {
+        return nextSeq.get();
+    }
+
+    private Entry insert(Entry entry) {
+        long seq = entry.seq;
+        int index = (int) (seq & mask);
+        // never replace a newer entry if writers lapped this one
+        while (true) {
+            Entry current = slots.get(index);
+            if (current != null && current.seq > seq) break;
+            if (slots.compareAndSet(index, current, entry)) break;
+        }
+        advancePublished();
+        return entry;
+    }
+
+    // every writer helps move the published mark over slots that are filled in
+    private void advancePublished() {
+        while (true) {
+            long p = published.get();
+            Entry next = slots.get((int) ((p + 1) & mask));
+            if (next == null || next.seq <= p) return;
+            published.compareAndSet(p, p + 1);
+        }
+    }
+
+    /**
+     * Highest published sequence number, 0 when empty.
+     */
+    public long lastSeq() {
+        return published.get();
+    }
+
+    /**
+     * Sequence number of the oldest line still visible, or lastSeq() + 1 when empty.
+     */
+    public long firstSeq() {
+        long last = published.get();
+        return Math.max(1, last - limit + 1);
+    }
+
+    /**
+     * Visits, oldest first, every visible entry with a sequence number greater than
+     * afterSeq, up to the published mark as of this call. Returns the number visited.
+     */
+    public int forEachAfter(long afterSeq, Consumer<Entry> action) {
+        long last = published.get();
+        long from = Math.max(afterSeq + 1, last - limit + 1);
+        int visited = 0;
+        for (long seq = Math.max(1, from); seq <= last; seq++) {
+            Entry e = slots.get((int) (seq & mask));
+            // skip a slot that a writer has already reused for a newer line
+            if (e == null || e.seq != seq) continue;
+            action.accept(e);
+            visited++;
+        }
+        return visited;
+    }
+
+    public int size() {
+        return (int) Math.min(limit, published.get());
+    }
+}
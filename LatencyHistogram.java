@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Buckets are log-linear: every power of two
+ * is split into SUB_BUCKETS equal parts, so a reported percentile is at most 1/SUB_BUCKETS
+ * (12.5%) above the true value. Recording is one atomic increment plus two adders, cheap
+ * enough for every broadcast; percentiles cover everything recorded since the last reset.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // exponents 0..63 with SUB_BUCKETS each, the first few being exact small values
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos));
+        total.increment();
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+    }
+
+    /**
+     * Records the time since a System.nanoTime() taken before the measured work.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketOf(long v) {
+        if (v < SUB_BUCKETS) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // largest value that falls into the bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long low = (1L << exp) + ((long) sub << (exp - SUB_BITS));
+        return low + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public long mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Value at or below which the given fraction (e.g. 0.99) of the recordings fall.
+     */
+    public long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * e.g. "1204 samples, mean 12.3us, p50 10.2us, p99 88.1us, p999 1.20ms, max 3.40ms".
+     */
+    public String summary() {
+        long n = count();
+        if (n == 0) return "no samples";
+        return n + " samples, mean " + format(mean()) + ", p50 " + format(percentile(0.50))
+                + ", p99 " + format(percentile(0.99)) + ", p999 " + format(percentile(0.999))
+                + ", max " + format(max());
+    }
+
+    public static String format(long nanos) {
+        if (nanos < 1000) return nanos + "ns";
+        if (nanos < 1_000_000) return String.format("%.1fus", nanos / 1e3);
+        if (nanos < 1_000_000_000) return String.format("%.2fms", nanos / 1e6);
+        return String.format("%.2fs", nanos / 1e9);
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal UTF-8 line reader for client sockets. Unlike BufferedReader it holds no monitor
+ * while blocked in read(), so it does not pin a virtual thread's carrier, and it starts
+ * with a small buffer so tens of thousands of idle connections stay cheap.
+ */
+public class LineReader {
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private byte[] line = new byte[128];
+
+    public LineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * Returns the next line without its terminator (\n or \r\n), or null at end of stream.
+     */
+    public String readLine() throws IOException {
+        int len = 0;
+        while (true) {
+            if (pos == limit) {
+                int n = in.read(buf, 0, buf.length);
+                if (n < 0) return len > 0 ? decode(len) : null;
+                pos = 0;
+                limit = n;
+            }
+            byte b = buf[pos++];
+            if (b == '\n') return decode(len);
+            if (len == MAX_LINE_BYTES) throw new IOException("Line too long");
+            if (len == line.length) line = Arrays.copyOf(line, line.length * 2);
+            line[len++] = b;
+        }
+    }
+
+    /**
+     * Reads exactly len bytes, taking buffered ones first (for a switch to binary frames
+     * after a line). Returns false if the stream ends before the first byte.
+     */
+    public boolean readFully(byte[] b, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            if (pos == limit) {
+                int n = in.read(buf, 0, buf.length);
+                if (n < 0) {
+                    if (done == 0) return false;
+                    throw new EOFException("stream ended inside a frame");
+                }
+                pos = 0;
+                limit = n;
+            }
+            int n = Math.min(len - done, limit - pos);
+            System.arraycopy(buf, pos, b, off + done, n);
+            pos += n;
+            done += n;
+        }
+        return true;
+    }
+
+    /**
+     * Like readLine(), but leaves the line in lineBuffer() instead of decoding it: returns
+     * its length without the terminator, or -1 at end of stream. The buffer is reused by
+     * the next call.
+     */
+    public int readLineBytes() throws IOException {
+        int len = 0;
+        while (true) {
+            if (pos == limit) {
+                int n = in.read(buf, 0, buf.length);
+                if (n < 0) return len > 0 ? trimCr(len) : -1;
+                pos = 0;
+                limit = n;
+            }
+            byte b = buf[pos++];
+            if (b == '\n') return trimCr(len);
+            if (len == MAX_LINE_BYTES) throw new IOException("Line too long");
+            if (len == line.length) line = Arrays.copyOf(line, line.length * 2);
+            line[len++] = b;
+        }
+    }
+
+    public byte[] lineBuffer() {
+        return line;
+    }
+
+    private int trimCr(int len) {
+        return len > 0 && line[len - 1] == '\r' ? len - 1 : len;
+    }
+
+    private String decode(int len) {
+        if (len > 0 && line[len - 1] == '\r') len--;
+        return new String(line, 0, len, StandardCharsets.UTF_8);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands server messages to the registered MessageListeners without running them on the
+ * broadcasting thread.
+ *
+ * Every listener gets its own bounded queue and delivery thread, which passes on whatever has
+ * piled up as one onMessages() batch. publish() never blocks: when a listener's queue is full
+ * the overflow policy drops its oldest or the new message, or with DISCONNECT detaches the
+ * listener, so a GUI that cannot keep up loses lines instead of slowing the chat down.
+ */
+public class ListenerBus {
+    private final int capacity;
+    private final int maxBatch;
+    private final OutboundQueue.Policy policy;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    public ListenerBus(int capacity, int maxBatch, OutboundQueue.Policy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.policy = policy;
+    }
+
+    public void add(MessageListener listener) {
+        if (closed) return;
+        Subscriber s = new Subscriber(listener, subscribers.size());
+        subscribers.add(s);
+        s.thread.start();
+    }
+
+    public void remove(MessageListener listener) {
+        for (Subscriber s : subscribers) {
+            if (s.listener == listener) detach(s);
+        }
+    }
+
+    public boolean isEmpty() {
+        return subscribers.isEmpty();
+    }
+
+    /**
+     * Queues a message for every listener; never blocks.
+     */
+    public void publish(String message) {
+        for (Subscriber s : subscribers) {
+            if (!s.offer(message)) {
+                Log.warn("[Server]: Detaching listener " + s.thread.getName() + ", "
+                        + s.dropped + " messages behind");
+                detach(s);
+            }
+        }
+    }
+
+    private void detach(Subscriber s) {
+        subscribers.remove(s);
+        s.close(false);
+    }
+
+    /**
+     * Delivers what is already queued (waiting up to a second per listener), then stops.
+     */
+    public void close() {
+        closed = true;
+        for (Subscriber s : subscribers) s.close(true);
+        for (Subscriber s : subscribers) {
+            try {
+                s.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Per listener: messages delivered, batches, dropped and highest queue depth.
+     */
+    public String statsSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(subscribers.size()).append(" listeners (").append(policy.name().toLowerCase())
+                .append(", capacity ").append(capacity).append(')');
+        for (Subscriber s : subscribers) {
+            long b = s.batches;
+            sb.append("\n  ").append(s.thread.getName()).append(": ").append(s.delivered).append(" messages in ")
+                    .append(b).append(" batches");
+            if (b > 0) sb.append(String.format(" (%.1f per batch)", (double) s.delivered / b));
+            sb.append(", ").append(s.dropped).append(" dropped, queue max ").append(s.maxDepth);
+        }
+        return sb.toString();
+    }
+
+    private final class Subscriber implements Runnable {
+        final MessageListener listener;
+        final Thread thread;
+        private final ArrayDeque<String> items = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private boolean closing;
+        private boolean drain;
+        // dropped and maxDepth are guarded by lock; the others are written by the thread only
+        volatile long dropped;
+        volatile int maxDepth;
+        volatile long delivered;
+        volatile long batches;
+
+        Subscriber(MessageListener listener, int id) {
+            this.listener = listener;
+            String type = listener.getClass().getSimpleName();
+            // lambdas and anonymous classes: keep the enclosing class name
+            if (type.indexOf('$') > 0) type = type.substring(0, type.indexOf('$'));
+            this.thread = new Thread(this, "listener-" + id + "-" + type);
+            this.thread.setDaemon(true);
+        }
+
+        // false when the listener should be detached
+        boolean offer(String message) {
+            lock.lock();
+            try {
+                if (closing) return true;
+                if (items.size() < capacity) {
+                    items.addLast(message);
+                    if (items.size() > maxDepth) maxDepth = items.size();
+                    notEmpty.signal();
+                    return true;
+                }
+                dropped++;
+                switch (policy) {
+                    case DROP_OLDEST:
+                        items.pollFirst();
+                        items.addLast(message);
+                        return true;
+                    case DROP_NEWEST:
+                        return true;
+                    default:
+                        return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close(boolean deliverQueued) {
+            lock.lock();
+            try {
+                closing = true;
+                drain = deliverQueued;
+                if (!deliverQueued) items.clear();
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // the next batch, a new list each time since listeners may keep it; null once stopped
+        private List<String> nextBatch() throws InterruptedException {
+            lock.lock();
+            try {
+                while (items.isEmpty() && !closing) notEmpty.await();
+                if (items.isEmpty() || (closing && !drain)) return null;
+                List<String> batch = new ArrayList<>(Math.min(items.size(), maxBatch));
+                while (batch.size() < maxBatch && !items.isEmpty()) batch.add(items.pollFirst());
+                return batch;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<String> batch;
+                try {
+                    batch = nextBatch();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (batch == null) return;
+                try {
+                    listener.onMessages(batch);
+                } catch (RuntimeException e) {
+                    Log.error("[Server]: Listener " + thread.getName() + " failed - " + e);
+                }
+                delivered += batch.size();
+                batches++;
+            }
+        }
+    }
+}
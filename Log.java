@@ -0,0 +1,163 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Leveled, asynchronous console logging for the server.
+ *
+ * Callers only put the finished message into a bounded ring; one background thread prints
+ * what has piled up with a single write per batch (WARN and ERROR to System.err, the rest to
+ * System.out). A full ring drops the message and counts it rather than block the caller.
+ * Messages below the level are never built when the Supplier forms are used, so per-message
+ * logging (DEBUG) costs a level check when it is off, which it is by default.
+ *
+ * The server sets the level from its config (-Dchat.logging.level); the ring size is read once
+ * from -Dchat.logging.buffer (default 16384 messages).
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private static final class Record {
+        final Level level;
+        final String message;
+
+        Record(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private static volatile Level level = Level.INFO;
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("chat.logging.buffer", 16384)));
+    private static final AtomicReferenceArray<Record> RING = new AtomicReferenceArray<>(CAPACITY);
+    // next slot to claim (producers) and next slot to print (the appender)
+    private static final AtomicLong HEAD = new AtomicLong();
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final AtomicLong WRITTEN = new AtomicLong();
+    private static final AtomicLong BATCHES = new AtomicLong();
+    private static volatile boolean appenderIdle;
+    private static final Thread APPENDER = new Thread(Log::appendLoop, "log-appender");
+
+    static {
+        APPENDER.setDaemon(true);
+        APPENDER.start();
+        // print what is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "log-flush"));
+    }
+
+    private Log() {}
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() <= level.ordinal();
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, message.get());
+    }
+
+    /**
+     * Queues a message for the appender; never blocks.
+     */
+    public static void log(Level l, String message) {
+        if (!isEnabled(l)) return;
+        long seq;
+        do {
+            seq = HEAD.get();
+            if (seq - TAIL.get() >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        } while (!HEAD.compareAndSet(seq, seq + 1));
+        RING.set((int) (seq & (CAPACITY - 1)), new Record(l, message));
+        if (appenderIdle) LockSupport.unpark(APPENDER);
+    }
+
+    /**
+     * Waits until everything queued so far has been printed, at most timeoutMs.
+     */
+    public static void flush(long timeoutMs) {
+        long target = HEAD.get();
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (TAIL.get() < target && System.nanoTime() < deadline && APPENDER.isAlive()) {
+            LockSupport.unpark(APPENDER);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * e.g. "120345 messages in 812 writes, 0 dropped".
+     */
+    public static String statsSummary() {
+        return WRITTEN.get() + " messages in " + BATCHES.get() + " writes, " + DROPPED.get() + " dropped";
+    }
+
+    private static void appendLoop() {
+        StringBuilder out = new StringBuilder(8192);
+        StringBuilder err = new StringBuilder(1024);
+        long reportedDrops = 0;
+        while (true) {
+            long tail = TAIL.get();
+            long n = 0;
+            while (tail + n < HEAD.get() && out.length() < 64 * 1024) {
+                int slot = (int) ((tail + n) & (CAPACITY - 1));
+                Record r = RING.get(slot);
+                // claimed but not stored yet: print what we have, the rest comes next round
+                if (r == null) break;
+                RING.set(slot, null);
+                StringBuilder sb = r.level.ordinal() <= Level.WARN.ordinal() ? err : out;
+                sb.append(r.message).append('\n');
+                n++;
+            }
+            long drops = DROPPED.get();
+            if (drops != reportedDrops) {
+                err.append("[Log]: ").append(drops - reportedDrops).append(" messages dropped, the log buffer was full\n");
+                reportedDrops = drops;
+            }
+            if (n > 0 || err.length() > 0) {
+                write(System.err, err);
+                write(System.out, out);
+                TAIL.lazySet(tail + n);
+                WRITTEN.addAndGet(n);
+                BATCHES.incrementAndGet();
+                continue;
+            }
+            appenderIdle = true;
+            if (TAIL.get() == HEAD.get()) LockSupport.parkNanos(10_000_000L);
+            appenderIdle = false;
+        }
+    }
+
+    private static void write(PrintStream stream, StringBuilder sb) {
+        if (sb.length() == 0) return;
+        stream.print(sb);
+        stream.flush();
+        sb.setLength(0);
+    }
+}
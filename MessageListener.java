@@ -1,6 +1,17 @@
+import java.util.List;
+
 /**
  * Simple listener for server-side messages (logs, broadcasts) so GUIs can subscribe.
+ * Listeners are called on their own delivery thread, never on the broadcasting one.
  */
 public interface MessageListener {
     void onMessage(String message);
+
+    /**
+     * Messages that queued up since the last call, oldest first. Override to handle a batch
+     * at once; the list is not reused and may be kept.
+     */
+    default void onMessages(List<String> messages) {
+        for (String m : messages) onMessage(m);
+    }
 }
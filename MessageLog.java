@@ -0,0 +1,705 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Segmented, append-only message log with random-access replay.
+ *
+ * Records (int length, long seq, long timestamp, UTF-8 text) are appended to the active
+ * segment file until it reaches the segment size, then a new segment named after its first
+ * sequence number is started. Every indexIntervalBytes a (seq, timestamp, position) entry
+ * goes into the segment's sparse .index file, so replaying "messages N..M" or "everything
+ * since T" is a binary search plus a sequential read of a memory-mapped segment.
+ * Closed segments older than the newest hotSegments are rewritten as block-compressed
+ * CompressedSegments on a background thread, and deleted once they exceed the retention limits.
+ *
+ * Appends, flush() and force() must come from a single thread (the history journal);
+ * reads may come from any thread.
+ */
+public class MessageLog {
+    /**
+     * One replayed message.
+     */
+    public static final class Record {
+        public final long seq;
+        public final long timestamp;
+        public final String text;
+
+        Record(long seq, long timestamp, String text) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+
+    static final int HEADER_BYTES = 20;              // int length, long seq, long timestamp
+    private static final int INDEX_ENTRY_BYTES = 20; // long seq, long timestamp, int position
+    private static final int ACTIVE_READ_BYTES = 64 * 1024; // chunk size for reads of the active segment
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private final File dir;
+    private final long segmentBytes;
+    private final int indexIntervalBytes;
+    private final int maxSegments;
+    private final long retentionMillis;
+    private final int hotSegments;
+    private final int blockBytes;
+    private final int compressionLevel;
+    private final long logId;
+    // base sequence number -> segment, oldest first; compaction swaps entries in place
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ExecutorService compactor;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(256 * 1024);
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(64 * INDEX_ENTRY_BYTES);
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private LogSegment active;
+
+    public MessageLog(File dir, long segmentBytes, int indexIntervalBytes, int maxSegments, long retentionMillis) throws IOException {
+        this(dir, segmentBytes, indexIntervalBytes, maxSegments, retentionMillis, 0, 0, 0);
+    }
+
+    /**
+     * @param hotSegments      newest segments kept uncompressed (including the one being
+     *                         appended to); 0 disables compression
+     * @param blockBytes       uncompressed size of one compressed block
+     * @param compressionLevel Deflater level, 1 (fastest) to 9 (smallest)
+     */
+    public MessageLog(File dir, long segmentBytes, int indexIntervalBytes, int maxSegments, long retentionMillis,
+                      int hotSegments, int blockBytes, int compressionLevel) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = Math.min(Integer.MAX_VALUE, Math.max(64 * 1024, segmentBytes));
+        this.indexIntervalBytes = Math.max(256, indexIntervalBytes);
+        this.maxSegments = maxSegments;
+        this.retentionMillis = retentionMillis;
+        this.hotSegments = hotSegments > 0 ? hotSegments : 0;
+        this.blockBytes = Math.max(4096, blockBytes);
+        this.compressionLevel = Math.max(1, Math.min(9, compressionLevel));
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        this.logId = readOrCreateId(new File(dir, "log.id"));
+
+        // compressed segments first: a plain file with the same base is a leftover from a
+        // compaction that was interrupted before it could delete it
+        for (File f : listFiles(CompressedSegment.SUFFIX)) {
+            long base = baseOf(f, CompressedSegment.SUFFIX);
+            if (base < 0) continue;
+            try {
+                segments.put(base, new CompressedSegment(base, f));
+            } catch (IOException e) {
+                Log.warn("[MessageLog]: Ignoring unreadable " + f.getName() + " - " + e.getMessage());
+            }
+        }
+        for (File f : listFiles(LOG_SUFFIX)) {
+            long base = baseOf(f, LOG_SUFFIX);
+            if (base < 0) continue;
+            if (segments.containsKey(base)) {
+                f.delete();
+                indexFileFor(base).delete();
+                continue;
+            }
+            LogSegment s = new LogSegment(base, f, indexFileFor(base));
+            s.recover();
+            segments.put(base, s);
+        }
+        for (File f : listFiles(CompressedSegment.SUFFIX + ".tmp")) f.delete();
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        if (last != null && last.getValue() instanceof LogSegment) active = (LogSegment) last.getValue();
+        for (Segment s : segments.values()) {
+            if (s instanceof LogSegment && s != active) ((LogSegment) s).sealed = true;
+        }
+
+        if (this.hotSegments > 0) {
+            compactor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "log-compactor");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+            scheduleCompaction();
+        } else {
+            compactor = null;
+        }
+    }
+
+    private File[] listFiles(String suffix) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(suffix));
+        return files != null ? files : new File[0];
+    }
+
+    private static long baseOf(File f, String suffix) {
+        String name = f.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1; // not one of ours
+        }
+    }
+
+    private static long readOrCreateId(File idFile) throws IOException {
+        if (idFile.exists()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(idFile))) {
+                return Long.parseLong(br.readLine().trim());
+            } catch (RuntimeException e) {
+                // rewritten below
+            }
+        }
+        long id = System.currentTimeMillis();
+        try (FileWriter fw = new FileWriter(idFile)) {
+            fw.write(Long.toString(id));
+        }
+        return id;
+    }
+
+    private File indexFileFor(long base) {
+        return new File(dir, String.format("%020d", base) + INDEX_SUFFIX);
+    }
+
+    /**
+     * Identifies this log across restarts; sequence numbers are unique within it.
+     */
+    public long getLogId() {
+        return logId;
+    }
+
+    public long lastSeq() {
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        return last != null ? last.getValue().lastSeq : 0;
+    }
+
+    public long firstSeq() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first != null ? first.getKey() : 0;
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    // ---- writing (journal thread only) ----
+
+    /**
+     * Buffers one record; payload is the UTF-8 text without a line terminator.
+     */
+    public void append(long seq, long timestamp, ByteBuffer payload) throws IOException {
+        int recordBytes = HEADER_BYTES + payload.remaining();
+        if (active == null) {
+            roll(seq);
+        } else if (active.size + writeBuffer.position() > 0
+                && active.size + writeBuffer.position() + recordBytes > segmentBytes) {
+            flush();
+            roll(seq);
+        }
+        long position = active.size + writeBuffer.position();
+        if (active.lastIndexedPosition < 0 || position - active.lastIndexedPosition >= indexIntervalBytes) {
+            if (!indexBuffer.hasRemaining()) flushIndex();
+            indexBuffer.putLong(seq).putLong(timestamp).putInt((int) position);
+            active.addIndexEntry(seq, timestamp, (int) position);
+        }
+        if (writeBuffer.remaining() < recordBytes) flushData();
+        if (writeBuffer.remaining() >= recordBytes) {
+            writeBuffer.putInt(payload.remaining()).putLong(seq).putLong(timestamp).put(payload);
+        } else {
+            // larger than the write buffer: write straight through
+            header.clear();
+            header.putInt(payload.remaining()).putLong(seq).putLong(timestamp).flip();
+            writeFully(active.channel, header, active.size);
+            writeFully(active.channel, payload, active.size + HEADER_BYTES);
+            active.size += recordBytes;
+        }
+        active.pendingSeq = seq;
+        active.pendingTimestamp = timestamp;
+    }
+
+    /**
+     * Hands buffered records and index entries to the OS and makes them visible to readers.
+     */
+    public void flush() throws IOException {
+        if (active == null) return;
+        flushData();
+        flushIndex();
+        active.lastSeq = active.pendingSeq;
+        active.lastTimestamp = active.pendingTimestamp;
+    }
+
+    private void flushData() throws IOException {
+        writeBuffer.flip();
+        if (writeBuffer.hasRemaining()) {
+            int n = writeBuffer.remaining();
+            writeFully(active.channel, writeBuffer, active.size);
+            active.size += n;
+        }
+        writeBuffer.clear();
+    }
+
+    private void flushIndex() throws IOException {
+        indexBuffer.flip();
+        if (indexBuffer.hasRemaining()) {
+            writeFully(active.indexChannel, indexBuffer, active.indexChannel.size());
+        }
+        indexBuffer.clear();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    public void force() throws IOException {
+        if (active == null) return;
+        active.channel.force(false);
+        active.indexChannel.force(false);
+    }
+
+    private void roll(long baseSeq) throws IOException {
+        if (active != null) active.seal();
+        File f = new File(dir, String.format("%020d", baseSeq) + LOG_SUFFIX);
+        LogSegment s = new LogSegment(baseSeq, f, indexFileFor(baseSeq));
+        segments.put(baseSeq, s);
+        active = s;
+        applyRetention();
+        scheduleCompaction();
+    }
+
+    private void applyRetention() {
+        long cutoff = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean tooMany = maxSegments > 0 && segments.size() > maxSegments;
+            boolean tooOld = oldest.lastTimestamp < cutoff;
+            if (!tooMany && !tooOld) break;
+            segments.remove(oldest.baseSeq);
+            oldest.delete();
+        }
+    }
+
+    // queue every closed plain segment older than the newest hotSegments for compression
+    private void scheduleCompaction() {
+        if (compactor == null) return;
+        int rank = 0;
+        for (Segment s : segments.descendingMap().values()) {
+            if (++rank <= hotSegments || !(s instanceof LogSegment) || s == active) continue;
+            LogSegment plain = (LogSegment) s;
+            if (plain.compactionQueued) continue;
+            plain.compactionQueued = true;
+            compactor.execute(() -> compact(plain));
+        }
+    }
+
+    private void compact(LogSegment plain) {
+        if (segments.get(plain.baseSeq) != plain) return; // already removed by retention
+        File target = new File(dir, String.format("%020d", plain.baseSeq) + CompressedSegment.SUFFIX);
+        try {
+            long t0 = System.nanoTime();
+            CompressedSegment packed = CompressedSegment.write(target, plain.baseSeq, plain.mapped(),
+                    blockBytes, compressionLevel);
+            if (segments.replace(plain.baseSeq, plain, packed)) {
+                plain.delete();
+                Log.info("[MessageLog]: Compressed " + plain.logFile.getName() + " " + plain.size / 1024
+                        + " KB -> " + packed.bytesOnDisk() / 1024 + " KB in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) + " ms");
+            } else {
+                packed.delete();
+            }
+        } catch (java.nio.channels.ClosedByInterruptException e) {
+            // close() cut it short; the segment stays plain and is compressed on the next start
+        } catch (IOException e) {
+            Log.error("[MessageLog]: Could not compress " + plain.logFile.getName() + " - " + e.getMessage());
+        }
+    }
+
+    // ---- reading (any thread) ----
+
+    /**
+     * Visits records with fromSeq <= seq <= toSeq in order; returns how many were visited.
+     */
+    public int forEach(long fromSeq, long toSeq, Consumer<Record> action) {
+        Long start = segments.floorKey(fromSeq);
+        if (start == null) start = segments.isEmpty() ? null : segments.firstKey();
+        if (start == null) return 0;
+        long t0 = System.nanoTime();
+        int visited = 0;
+        for (Segment s : segments.tailMap(start, true).values()) {
+            if (s.baseSeq > toSeq) break;
+            visited += s.read(fromSeq, toSeq, Long.MIN_VALUE, action);
+        }
+        recordRead(t0);
+        return visited;
+    }
+
+    /**
+     * Visits the records with the sequence numbers seqs[from..to), which must be ascending;
+     * each segment is asked once for all of its seqs, so a compressed block is inflated once
+     * however many of them it holds. Returns how many were visited.
+     */
+    public int forEachSeq(long[] seqs, int from, int to, Consumer<Record> action) {
+        long t0 = System.nanoTime();
+        int visited = 0;
+        int i = from;
+        while (i < to) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(seqs[i]);
+            if (e == null) {
+                i++; // older than anything retained
+                continue;
+            }
+            Long next = segments.higherKey(e.getKey());
+            int j = i + 1;
+            while (j < to && (next == null || seqs[j] < next)) j++;
+            visited += e.getValue().readSeqs(seqs, i, j, action);
+            i = j;
+        }
+        recordRead(t0);
+        return visited;
+    }
+
+    /**
+     * Visits every record stamped at or after the given time (epoch millis).
+     */
+    public int forEachSince(long timestampMillis, Consumer<Record> action) {
+        long t0 = System.nanoTime();
+        int visited = 0;
+        for (Segment s : segments.values()) {
+            if (s.lastTimestamp < timestampMillis) continue;
+            visited += s.read(Long.MIN_VALUE, Long.MAX_VALUE, timestampMillis, action);
+        }
+        recordRead(t0);
+        return visited;
+    }
+
+    private void recordRead(long startNanos) {
+        reads.incrementAndGet();
+        readNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Decodes records from buf starting at position from; shared by plain and compressed segments.
+     */
+    static int scanRecords(ByteBuffer buf, int from, long fromSeq, long toSeq, long fromTime, Consumer<Record> action) {
+        int visited = 0;
+        int p = from;
+        byte[] text = new byte[256];
+        while (p + HEADER_BYTES <= buf.limit()) {
+            int len = buf.getInt(p);
+            long seq = buf.getLong(p + 4);
+            if (seq > toSeq) break;
+            long time = buf.getLong(p + 12);
+            if (seq >= fromSeq && time >= fromTime) {
+                if (text.length < len) text = new byte[len];
+                buf.position(p + HEADER_BYTES);
+                buf.get(text, 0, len);
+                action.accept(new Record(seq, time, new String(text, 0, len, StandardCharsets.UTF_8)));
+                visited++;
+            }
+            p += HEADER_BYTES + len;
+        }
+        return visited;
+    }
+
+    /**
+     * Segment counts, plain vs compressed sizes and replay latency.
+     */
+    public String statsSummary() {
+        int plain = 0;
+        int packed = 0;
+        long plainBytes = 0;
+        long packedBytes = 0;
+        long packedRaw = 0;
+        for (Segment s : segments.values()) {
+            if (s instanceof CompressedSegment) {
+                packed++;
+                packedBytes += s.bytesOnDisk();
+                packedRaw += ((CompressedSegment) s).getRawBytes();
+            } else {
+                plain++;
+                plainBytes += s.bytesOnDisk();
+            }
+        }
+        long n = reads.get();
+        String ratio = packedBytes == 0 ? "-" : String.format("%.1fx", (double) packedRaw / packedBytes);
+        return plain + " plain segments (" + plainBytes / 1024 + " KB), " + packed + " compressed ("
+                + packedRaw / 1024 + " KB -> " + packedBytes / 1024 + " KB, " + ratio + "), "
+                + n + " reads (avg " + (n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(readNanos.get() / n)) + " us), "
+                + CompressedSegment.statsSummary();
+    }
+
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            try {
+                compactor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Segment s : segments.values()) s.close();
+    }
+
+    /**
+     * A run of the log starting at baseSeq, stored either plain or compressed.
+     */
+    abstract static class Segment {
+        final long baseSeq;
+        volatile long lastSeq;
+        volatile long lastTimestamp = Long.MIN_VALUE;
+
+        Segment(long baseSeq) {
+            this.baseSeq = baseSeq;
+        }
+
+        /**
+         * Visits records with fromSeq <= seq <= toSeq stamped at or after fromTime.
+         */
+        abstract int read(long fromSeq, long toSeq, long fromTime, Consumer<Record> action);
+
+        /**
+         * Visits the records with the (ascending) sequence numbers seqs[from..to), all of them
+         * in this segment; one lookup per seq unless the segment can do better.
+         */
+        int readSeqs(long[] seqs, int from, int to, Consumer<Record> action) {
+            int visited = 0;
+            for (int i = from; i < to; i++) visited += read(seqs[i], seqs[i], Long.MIN_VALUE, action);
+            return visited;
+        }
+
+        abstract long bytesOnDisk();
+
+        abstract void close();
+
+        abstract void delete();
+    }
+
+    /**
+     * Sparse index entries, published to readers through a volatile count.
+     */
+    private static final class IndexArrays {
+        final long[] seqs;
+        final long[] times;
+        final int[] positions;
+        volatile int count;
+
+        IndexArrays(int capacity) {
+            seqs = new long[capacity];
+            times = new long[capacity];
+            positions = new int[capacity];
+        }
+    }
+
+    private static final class LogSegment extends Segment {
+        final File logFile;
+        final File indexFile;
+        final FileChannel channel;
+        final FileChannel indexChannel;
+        volatile IndexArrays index = new IndexArrays(16);
+        // bytes written to the channel; readers never look past this
+        volatile long size;
+        long pendingSeq;
+        long pendingTimestamp = Long.MIN_VALUE;
+        long lastIndexedPosition = -1;
+        volatile boolean compactionQueued;
+        // no more appends: from then on the segment is read through one mapping of its final size
+        volatile boolean sealed;
+        private volatile MappedByteBuffer map;
+
+        LogSegment(long baseSeq, File logFile, File indexFile) throws IOException {
+            super(baseSeq);
+            this.logFile = logFile;
+            this.indexFile = indexFile;
+            this.channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Loads the index and validates the records after its last entry, cutting off a
+         * partially written tail left by a crash. Cost is bounded by the index interval.
+         */
+        void recover() throws IOException {
+            long fileSize = channel.size();
+            long indexSize = indexChannel.size() / INDEX_ENTRY_BYTES * INDEX_ENTRY_BYTES;
+            ByteBuffer idx = ByteBuffer.allocate((int) indexSize);
+            while (idx.hasRemaining() && indexChannel.read(idx, idx.position()) >= 0) { }
+            idx.flip();
+            while (idx.remaining() >= INDEX_ENTRY_BYTES) {
+                long seq = idx.getLong();
+                long time = idx.getLong();
+                int pos = idx.getInt();
+                if (pos >= fileSize) break;
+                addIndexEntry(seq, time, pos);
+            }
+            IndexArrays a = index;
+            indexChannel.truncate((long) a.count * INDEX_ENTRY_BYTES);
+
+            long p = a.count > 0 ? a.positions[a.count - 1] : 0;
+            ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES);
+            while (p + HEADER_BYTES <= fileSize) {
+                head.clear();
+                while (head.hasRemaining() && channel.read(head, p + head.position()) >= 0) { }
+                int len = head.getInt(0);
+                if (len < 0 || p + HEADER_BYTES + len > fileSize) break;
+                lastSeq = head.getLong(4);
+                lastTimestamp = head.getLong(12);
+                p += HEADER_BYTES + len;
+            }
+            if (p < fileSize) channel.truncate(p);
+            size = p;
+            pendingSeq = lastSeq;
+            pendingTimestamp = lastTimestamp;
+            lastIndexedPosition = a.count > 0 ? a.positions[a.count - 1] : -1;
+        }
+
+        void addIndexEntry(long seq, long time, int position) {
+            IndexArrays a = index;
+            int n = a.count;
+            if (n == a.seqs.length) {
+                IndexArrays grown = new IndexArrays(n * 2);
+                System.arraycopy(a.seqs, 0, grown.seqs, 0, n);
+                System.arraycopy(a.times, 0, grown.times, 0, n);
+                System.arraycopy(a.positions, 0, grown.positions, 0, n);
+                grown.count = n;
+                index = a = grown;
+            }
+            a.seqs[n] = seq;
+            a.times[n] = time;
+            a.positions[n] = position;
+            a.count = n + 1;
+            lastIndexedPosition = position;
+        }
+
+        // position of the last indexed record at or before seq
+        int positionForSeq(long seq) {
+            IndexArrays a = index;
+            int lo = 0;
+            int hi = a.count - 1;
+            int found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (a.seqs[mid] <= seq) {
+                    found = a.positions[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        // position of the last indexed record stamped before the given time
+        int positionForTime(long time) {
+            IndexArrays a = index;
+            int lo = 0;
+            int hi = a.count - 1;
+            int found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (a.times[mid] < time) {
+                    found = a.positions[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        ByteBuffer mapped() throws IOException {
+            long limit = size;
+            MappedByteBuffer m = map;
+            if (m == null || m.capacity() < limit) {
+                // mapped once, when first read after sealing
+                m = channel.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+                map = m;
+            }
+            ByteBuffer view = m.duplicate();
+            view.limit((int) limit);
+            return view;
+        }
+
+        @Override
+        int read(long fromSeq, long toSeq, long fromTime, Consumer<Record> action) {
+            int from = fromTime > Long.MIN_VALUE ? positionForTime(fromTime) : positionForSeq(fromSeq);
+            try {
+                if (!sealed) return readActive(from, fromSeq, toSeq, fromTime, action);
+                return scanRecords(mapped(), from, fromSeq, toSeq, fromTime, action);
+            } catch (IOException e) {
+                Log.error("[MessageLog]: Failed to read " + logFile.getName() + " - " + e.getMessage());
+                return 0;
+            }
+        }
+
+        /**
+         * The active segment grows with every append, and mapping it again for each read would
+         * leave a new mapping per read until GC; it is read with positional reads in chunks.
+         */
+        private int readActive(int from, long fromSeq, long toSeq, long fromTime, Consumer<Record> action) throws IOException {
+            long limit = size;
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.max(HEADER_BYTES, Math.min(ACTIVE_READ_BYTES, limit - from)));
+            long pos = from;
+            int visited = 0;
+            while (pos + HEADER_BYTES <= limit) {
+                int want = (int) Math.min(buf.capacity(), limit - pos);
+                buf.clear();
+                buf.limit(want);
+                while (buf.hasRemaining() && channel.read(buf, pos + buf.position()) >= 0) { }
+                int n = buf.position();
+                // whole records in the chunk
+                int end = 0;
+                int lastStart = -1;
+                while (end + HEADER_BYTES <= n && end + HEADER_BYTES + buf.getInt(end) <= n) {
+                    lastStart = end;
+                    end += HEADER_BYTES + buf.getInt(end);
+                }
+                if (lastStart < 0) {
+                    if (n < want || n < HEADER_BYTES) break;
+                    // a record larger than the buffer
+                    buf = ByteBuffer.allocate(HEADER_BYTES + buf.getInt(0));
+                    continue;
+                }
+                buf.limit(end);
+                visited += scanRecords(buf, 0, fromSeq, toSeq, fromTime, action);
+                if (buf.getLong(lastStart + 4) > toSeq) break;
+                pos += end;
+            }
+            return visited;
+        }
+
+        @Override
+        long bytesOnDisk() {
+            return size;
+        }
+
+        // no more appends go to this segment: make it durable before moving on
+        void seal() throws IOException {
+            channel.force(false);
+            indexChannel.force(false);
+            sealed = true;
+        }
+
+        @Override
+        void close() {
+            // the mapping stays valid for readers still holding this segment
+            try { channel.close(); } catch (IOException ignored) {}
+            try { indexChannel.close(); } catch (IOException ignored) {}
+        }
+
+        @Override
+        void delete() {
+            close();
+            // a mapped file cannot be deleted on Windows until the mapping is collected
+            if (!logFile.delete() && logFile.exists()) {
+                Log.error("[MessageLog]: Could not delete old segment " + logFile.getName());
+            }
+            indexFile.delete();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide hot-path counters and latency histograms. The recording side is lock-free;
+ * rates are worked out when a report is taken, from the counts at the previous report at
+ * least a second earlier, so several readers (the stats port, the GUI) see the same numbers.
+ */
+public class Metrics {
+    // chat lines received from clients, and lines queued to clients by broadcasts
+    public final LongAdder messagesIn = new LongAdder();
+    public final LongAdder messagesOut = new LongAdder();
+    // a whole broadcast on the sender's thread: history, journal, DB queue and hand-off
+    public final LatencyHistogram broadcast = new LatencyHistogram();
+    // queueing one broadcast line for its recipients (per shard with the dispatcher)
+    public final LatencyHistogram fanout = new LatencyHistogram();
+    // Server.addToHistory: history ring plus the journal hand-off
+    public final LatencyHistogram history = new LatencyHistogram();
+
+    private final long startNanos = System.nanoTime();
+    private long sampleNanos = startNanos;
+    private long sampleIn;
+    private long sampleOut;
+    private double inPerSecond;
+    private double outPerSecond;
+
+    // refreshes the rates if the last sample is at least a second old
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        long elapsed = now - sampleNanos;
+        if (elapsed < 1_000_000_000L) return;
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        inPerSecond = (in - sampleIn) * 1e9 / elapsed;
+        outPerSecond = (out - sampleOut) * 1e9 / elapsed;
+        sampleIn = in;
+        sampleOut = out;
+        sampleNanos = now;
+    }
+
+    public synchronized double inPerSecond() {
+        sample();
+        return inPerSecond;
+    }
+
+    public synchronized double outPerSecond() {
+        sample();
+        return outPerSecond;
+    }
+
+    public long uptimeSeconds() {
+        return (System.nanoTime() - startNanos) / 1_000_000_000L;
+    }
+
+    /**
+     * Clears the histograms, e.g. between two load runs; counters keep counting.
+     */
+    public void resetHistograms() {
+        broadcast.reset();
+        fanout.reset();
+        history.reset();
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-client state for NIO mode. Reads and writes only happen on the owning event loop;
+ * sendMessage() may be called from any thread and just queues bytes for that loop.
+ */
+public class NioClientConnection implements ClientConnection {
+    // guard against a client that never sends a newline
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioServer.EventLoop loop;
+    private final Server server;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    // bytes of the line, or frame, being read
+    private byte[] lineBytes = new byte[256];
+    private int lineLength;
+    // length of the frame being read, -1 while its length field is still incomplete
+    private int frameLength = -1;
+    private final OutboundQueue<ByteBuffer> outbound;
+    private final int maxBatch;
+    // current gathering batch; pendingStart..pendingEnd is still unwritten
+    private final List<ByteBuffer> drained = new ArrayList<>();
+    private ByteBuffer[] pending = new ByteBuffer[4];
+    private int pendingStart;
+    private int pendingEnd;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile String username = "Unknown";
+    private volatile byte[] linePrefix = ChatProtocol.linePrefix(username);
+    private volatile boolean sequenced;
+    private volatile boolean framed;
+    private volatile boolean deflate;
+    private boolean handshakeDone;
+    private volatile ChatRoom room;
+    private final Set<ChatRoom> rooms = ConcurrentHashMap.newKeySet();
+    private volatile int shard;
+    private volatile boolean closed;
+    private boolean loggedIn;
+
+    NioClientConnection(SocketChannel channel, SelectionKey key, NioServer.EventLoop loop, Server server) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.server = server;
+        this.outbound = server.newOutboundQueue();
+        this.maxBatch = server.getConfig().outboundMaxBatch;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+        this.linePrefix = ChatProtocol.linePrefix(username);
+    }
+
+    @Override
+    public byte[] linePrefix() {
+        return linePrefix;
+    }
+
+    @Override
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    @Override
+    public void setSequenced(boolean sequenced) {
+        this.sequenced = sequenced;
+    }
+
+    @Override
+    public boolean isFramed() {
+        return framed;
+    }
+
+    @Override
+    public boolean acceptsDeflate() {
+        return deflate;
+    }
+
+    @Override
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    @Override
+    public Set<ChatRoom> getRooms() {
+        return rooms;
+    }
+
+    @Override
+    public int getShard() {
+        return shard;
+    }
+
+    @Override
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    @Override
+    public void sendMessage(String message) {
+        send(framed ? Frames.encodeText(message, deflate) : ChatProtocol.encodeLine(message));
+    }
+
+    @Override
+    public int queueDepth() {
+        return outbound.size();
+    }
+
+    @Override
+    public String flushSummary() {
+        return outbound.flushSummary();
+    }
+
+    @Override
+    public void send(ByteBuffer line) {
+        if (closed) return;
+        if (!outbound.offer(line)) {
+            server.slowConsumerDisconnected(this);
+            loop.execute(this::close);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    void onReadable() {
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            Log.warn("[NioClientConnection]: Connection error for " + username + " - " + e.getMessage());
+            close();
+            return;
+        }
+        if (n < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining() && !closed) {
+            if (framed) {
+                readFrameBytes();
+                continue;
+            }
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                if (loggedIn) {
+                    int len = lineLength;
+                    if (len > 0 && lineBytes[len - 1] == '\r') len--;
+                    server.messageReceived(this, lineBytes, len);
+                } else {
+                    handleLine(decodeLine());
+                }
+                lineLength = 0;
+            } else {
+                if (lineLength == MAX_LINE_BYTES) {
+                    Log.warn("[NioClientConnection]: Line too long from " + username + ", closing");
+                    close();
+                    return;
+                }
+                if (lineLength == lineBytes.length) lineBytes = Arrays.copyOf(lineBytes, lineBytes.length * 2);
+                lineBytes[lineLength++] = b;
+            }
+        }
+        readBuffer.clear();
+    }
+
+    // collects the length field, then the body, of the next frame
+    private void readFrameBytes() {
+        int need = frameLength < 0 ? 4 : frameLength;
+        int n = Math.min(need - lineLength, readBuffer.remaining());
+        if (lineBytes.length < need) lineBytes = Arrays.copyOf(lineBytes, Math.max(need, lineBytes.length * 2));
+        readBuffer.get(lineBytes, lineLength, n);
+        lineLength += n;
+        if (lineLength < need) return;
+        lineLength = 0;
+        try {
+            if (frameLength < 0) {
+                frameLength = Frames.checkLength(ByteBuffer.wrap(lineBytes, 0, 4).getInt());
+                return;
+            }
+            Frames.Frame frame = Frames.decode(lineBytes, 0, frameLength);
+            frameLength = -1;
+            handleLine(Frames.toSingleLine(frame.payload));
+        } catch (IOException e) {
+            Log.warn("[NioClientConnection]: Bad frame from " + username + " - " + e.getMessage() + ", closing");
+            close();
+        }
+    }
+
+    private String decodeLine() {
+        int len = lineLength;
+        if (len > 0 && lineBytes[len - 1] == '\r') len--;
+        return new String(lineBytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private void handleLine(String line) {
+        if (!handshakeDone) {
+            handshakeDone = true;
+            Boolean offer = Frames.parseHandshake(line);
+            if (offer != null) {
+                // a switch to frames comes before the login line
+                ServerConfig config = server.getConfig();
+                if (config.framesEnabled) {
+                    deflate = offer && config.framesCompress;
+                    sendMessage(Frames.handshake(deflate));
+                    framed = true;
+                } else {
+                    sendMessage(Frames.decline());
+                }
+                return;
+            }
+        }
+        if (!loggedIn) {
+            // Protocol: first line from client is the username (or a resume handshake)
+            loggedIn = true;
+            server.clientJoined(this, line);
+        } else {
+            server.messageReceived(this, line);
+        }
+    }
+
+    /**
+     * Writes as much queued output as the socket accepts; runs on the event loop.
+     * Everything pending goes out in one gathering write per batch.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed) return;
+        try {
+            while (pendingStart < pendingEnd || nextBatch()) {
+                channel.write(pending, pendingStart, pendingEnd - pendingStart);
+                while (pendingStart < pendingEnd && !pending[pendingStart].hasRemaining()) {
+                    pending[pendingStart++] = null;
+                }
+                if (pendingStart < pendingEnd) {
+                    // socket send buffer is full, resume when it drains
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException | CancelledKeyException | InterruptedException e) {
+            close();
+        }
+    }
+
+    // takes private views of the next queued lines so this connection's write positions are its own
+    private boolean nextBatch() throws InterruptedException {
+        drained.clear();
+        int n = outbound.drainTo(drained, maxBatch, 0);
+        if (n == 0) return false;
+        if (pending.length < n) pending = new ByteBuffer[Math.max(n, pending.length * 2)];
+        for (int i = 0; i < n; i++) pending[i] = drained.get(i).duplicate();
+        drained.clear();
+        pendingStart = 0;
+        pendingEnd = n;
+        outbound.recordFlush(n);
+        return true;
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        outbound.close();
+        server.clientLeft(this);
+    }
+}
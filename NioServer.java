@@ -0,0 +1,148 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Non-blocking server mode: the calling thread accepts connections and hands each one
+ * to a small fixed set of selector threads (event loops) that service all client sockets.
+ * Speaks the same line protocol as ClientHandler (username first, then one message per line).
+ */
+public class NioServer {
+    private final Server server;
+    private final int port;
+    private final EventLoop[] loops;
+    private ServerSocketChannel acceptChannel;
+    private volatile boolean running;
+
+    public NioServer(Server server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    /**
+     * Binds the port and accepts connections until stop() is called.
+     */
+    public void run() throws IOException {
+        acceptChannel = ServerSocketChannel.open();
+        acceptChannel.bind(new InetSocketAddress(port));
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(server);
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        server.logToListeners("[Server]: Listening on port " + port + " (nio, " + loops.length + " event loops)");
+
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = acceptChannel.accept();
+            } catch (ClosedChannelException e) {
+                break; // stop() closed the listening socket
+            } catch (IOException e) {
+                // e.g. out of file descriptors: keep accepting once some are freed
+                Log.error("[NioServer]: Accept failed - " + e.getMessage());
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+            // a connection that is already gone only costs itself
+            try {
+                server.logToListeners("[Server]: Client connected from " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                Log.warn("[NioServer]: Dropping accepted connection - " + e.getMessage());
+                try { channel.close(); } catch (IOException ignored) {}
+                continue;
+            }
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try { if (acceptChannel != null) acceptChannel.close(); } catch (IOException ignored) {}
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+    }
+
+    /**
+     * One selector thread. Other threads never touch its keys directly; they submit
+     * tasks (registration, flush requests) which run between select() calls.
+     */
+    static final class EventLoop implements Runnable {
+        private final Server server;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop(Server server) throws IOException {
+            this.server = server;
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioClientConnection conn = new NioClientConnection(channel, key, this, server);
+                    key.attach(conn);
+                } catch (IOException e) {
+                    Log.error("[NioServer]: Could not register client - " + e.getMessage());
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioClientConnection conn = (NioClientConnection) key.attachment();
+                        if (conn == null || !key.isValid()) continue;
+                        if (key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.flush();
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("[NioServer]: Event loop error - " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    Object conn = key.attachment();
+                    if (conn instanceof NioClientConnection) ((NioClientConnection) conn).close();
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+}
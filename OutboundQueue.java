@@ -0,0 +1,186 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-client queue of outgoing messages. Producers (broadcasting threads) never
+ * block: when the queue is full the configured slow-consumer policy decides what happens.
+ * The consumer is the client's own writer (a writer thread or its NIO event loop).
+ */
+public class OutboundQueue<T> {
+    public enum Policy { DROP_OLDEST, DROP_NEWEST, DISCONNECT }
+
+    // server-wide counters, one per policy outcome
+    private static final AtomicLong DROPPED_OLDEST = new AtomicLong();
+    private static final AtomicLong DROPPED_NEWEST = new AtomicLong();
+    private static final AtomicLong DISCONNECTS = new AtomicLong();
+
+    private final ArrayDeque<T> items = new ArrayDeque<>();
+    private final int capacity;
+    private final Policy policy;
+    private final int disconnectAfter;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long dropped;
+    private int overflowStreak;
+    private boolean closed;
+    // written only by the consumer, read by stats reporting
+    private volatile long flushes;
+    private volatile long flushedMessages;
+
+    /**
+     * @param disconnectAfter for DISCONNECT: overflowing messages tolerated before giving up
+     *                        on the client (counted since the writer last made progress)
+     */
+    public OutboundQueue(int capacity, Policy policy, int disconnectAfter) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.disconnectAfter = Math.max(0, disconnectAfter);
+    }
+
+    /**
+     * Queues a message. Returns false when the client should be disconnected.
+     */
+    public boolean offer(T item) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (items.size() < capacity) {
+                items.addLast(item);
+                notEmpty.signal();
+                return true;
+            }
+            dropped++;
+            switch (policy) {
+                case DROP_OLDEST:
+                    items.pollFirst();
+                    items.addLast(item);
+                    DROPPED_OLDEST.incrementAndGet();
+                    return true;
+                case DROP_NEWEST:
+                    DROPPED_NEWEST.incrementAndGet();
+                    return true;
+                default:
+                    if (++overflowStreak <= disconnectAfter) {
+                        DROPPED_NEWEST.incrementAndGet();
+                        return true;
+                    }
+                    DISCONNECTS.incrementAndGet();
+                    closeLocked();
+                    return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a message is available; returns null once the queue is closed.
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) notEmpty.await();
+            overflowStreak = 0;
+            return closed ? null : items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to max queued messages into the given collection, first waiting up to
+     * maxWaitNanos for that many to arrive so they can go out in one write.
+     */
+    public int drainTo(Collection<? super T> into, int max, long maxWaitNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = maxWaitNanos;
+            while (items.size() < max && remaining > 0 && !closed) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            overflowStreak = 0;
+            int n = 0;
+            while (n < max && !items.isEmpty()) {
+                into.add(items.pollFirst());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records one socket write that carried the given number of messages.
+     */
+    public void recordFlush(int messages) {
+        flushes++;
+        flushedMessages += messages;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public long getFlushedMessages() {
+        return flushedMessages;
+    }
+
+    public String flushSummary() {
+        long f = flushes;
+        long m = flushedMessages;
+        return m + " messages in " + f + " writes"
+                + (f > 0 ? String.format(" (%.1f per write)", (double) m / f) : "");
+    }
+
+    public T poll() {
+        lock.lock();
+        try {
+            overflowStreak = 0;
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeLocked() {
+        closed = true;
+        items.clear();
+        notEmpty.signalAll();
+    }
+
+    public static String statsSummary() {
+        return "dropped oldest: " + DROPPED_OLDEST.get()
+                + ", dropped newest: " + DROPPED_NEWEST.get()
+                + ", slow-consumer disconnects: " + DISCONNECTS.get();
+    }
+}
@@ -0,0 +1,555 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Incrementally maintained inverted index over the message log.
+ *
+ * A background thread follows the MessageLog as the journal appends to it and adds every
+ * message to per-word and per-user posting lists (delta-encoded sequence numbers with a skip
+ * entry every SKIP_INTERVAL postings) plus a sparse sequence/time table. Queries intersect
+ * the posting lists, narrow them to a time range and fetch only the matching records from the
+ * log. The index is snapshotted to disk periodically and on close; on startup it loads the
+ * snapshot and only indexes what the log gained since.
+ */
+public class SearchIndex {
+    private static final int SNAPSHOT_MAGIC = 0x53494458;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SKIP_INTERVAL = 128;
+    private static final int TIME_SAMPLE_INTERVAL = 64;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int INDEX_CHUNK = 4096;
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Parsed search request: all words must match; user and time bounds are optional.
+     */
+    public static final class Query {
+        public final List<String> terms = new ArrayList<>();
+        public String user;
+        public long fromMillis = Long.MIN_VALUE;
+        public long toMillis = Long.MAX_VALUE;
+        public int limit = 50;
+        // rooms results may come from (see ChatProtocol.roomOf), or null for every room
+        public Set<String> rooms;
+
+        /**
+         * Parses "word ... [user:name] [since:30m|2h|7d] [from:yyyy-MM-ddTHH:mm] [to:...] [limit:N]".
+         */
+        public static Query parse(String text) throws IllegalArgumentException {
+            Query q = new Query();
+            for (String part : text.trim().split("\\s+")) {
+                if (part.isEmpty()) continue;
+                int colon = part.indexOf(':');
+                String key = colon > 0 ? part.substring(0, colon).toLowerCase() : "";
+                String value = colon > 0 ? part.substring(colon + 1) : part;
+                switch (key) {
+                    case "user":
+                        q.user = value.toLowerCase();
+                        break;
+                    case "since":
+                        q.fromMillis = System.currentTimeMillis() - parseDuration(value);
+                        break;
+                    case "from":
+                        q.fromMillis = parseTime(value);
+                        break;
+                    case "to":
+                        q.toMillis = parseTime(value);
+                        break;
+                    case "limit":
+                        q.limit = Math.max(1, Math.min(1000, Integer.parseInt(value)));
+                        break;
+                    default:
+                        tokenize(part, q.terms::add);
+                }
+            }
+            if (q.terms.isEmpty() && q.user == null) throw new IllegalArgumentException("give a word or user:<name>");
+            return q;
+        }
+
+        private static long parseDuration(String value) {
+            if (value.length() < 2) throw new IllegalArgumentException("bad duration " + value);
+            long n = Long.parseLong(value.substring(0, value.length() - 1));
+            switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+                case 'm': return TimeUnit.MINUTES.toMillis(n);
+                case 'h': return TimeUnit.HOURS.toMillis(n);
+                case 'd': return TimeUnit.DAYS.toMillis(n);
+                default: throw new IllegalArgumentException("bad duration " + value);
+            }
+        }
+
+        private static long parseTime(String value) {
+            try {
+                return new SimpleDateFormat(value.length() > 10 ? "yyyy-MM-dd'T'HH:mm" : "yyyy-MM-dd").parse(value).getTime();
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("bad time " + value + " (use yyyy-MM-dd or yyyy-MM-ddTHH:mm)");
+            }
+        }
+    }
+
+    /**
+     * Sequence numbers containing one word or sent by one user, ascending. Postings are varint
+     * deltas, except every SKIP_INTERVAL-th which is stored whole and listed in the skip table.
+     */
+    private static final class Postings {
+        byte[] data = new byte[16];
+        int size;
+        int count;
+        long last;
+        long[] skipSeqs = new long[1];
+        int[] skipPositions = new int[1];
+        int skipCount;
+
+        void add(long seq) {
+            if (count % SKIP_INTERVAL == 0) {
+                if (skipCount == skipSeqs.length) {
+                    skipSeqs = Arrays.copyOf(skipSeqs, skipCount * 2);
+                    skipPositions = Arrays.copyOf(skipPositions, skipCount * 2);
+                }
+                skipSeqs[skipCount] = seq;
+                skipPositions[skipCount] = size;
+                skipCount++;
+                writeVarLong(seq);
+            } else {
+                writeVarLong(seq - last);
+            }
+            last = seq;
+            count++;
+        }
+
+        // last skip block starting at or before seq, or -1
+        int blockAtOrBefore(long seq) {
+            int lo = 0;
+            int hi = skipCount - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (skipSeqs[mid] <= seq) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        private void writeVarLong(long v) {
+            if (size + 10 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + 10));
+            while ((v & ~0x7FL) != 0) {
+                data[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[size++] = (byte) v;
+        }
+    }
+
+    /**
+     * Forward iterator over one Postings; advance() jumps through the skip table.
+     */
+    private static final class Cursor {
+        final Postings p;
+        int pos;
+        int index;
+        long current = -1;
+
+        Cursor(Postings p) {
+            this.p = p;
+        }
+
+        // next sequence number, or -1 when exhausted
+        long next() {
+            if (index >= p.count) return current = -1;
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = p.data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            current = index % SKIP_INTERVAL == 0 ? v : current + v;
+            index++;
+            return current;
+        }
+
+        // first sequence number >= target, or -1
+        long advance(long target) {
+            if (current >= target) return current;
+            // jump only forward: to a block this cursor has not started yet
+            int block = p.blockAtOrBefore(target);
+            if (block >= 0 && block * SKIP_INTERVAL >= index) {
+                pos = p.skipPositions[block];
+                index = block * SKIP_INTERVAL;
+            }
+            long v;
+            while ((v = next()) >= 0 && v < target) { }
+            return v;
+        }
+    }
+
+    private final MessageLog log;
+    private final File snapshotFile;
+    private final int snapshotLines;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Postings> users = new HashMap<>();
+    // every TIME_SAMPLE_INTERVAL-th message: (seq, timestamp), to turn time bounds into seq bounds
+    private long[] sampleSeqs = new long[1024];
+    private long[] sampleTimes = new long[1024];
+    private int sampleCount;
+    private long linesIndexed;
+    private volatile long indexedSeq;
+    private final Thread indexer;
+    private volatile boolean running = true;
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong queryNanos = new AtomicLong();
+
+    /**
+     * @param snapshotLines write a snapshot after this many newly indexed lines (and on close)
+     */
+    public SearchIndex(MessageLog log, File snapshotFile, int snapshotLines) {
+        this.log = log;
+        this.snapshotFile = snapshotFile;
+        this.snapshotLines = Math.max(1000, snapshotLines);
+        long t0 = System.nanoTime();
+        if (loadSnapshot()) {
+            Log.info("[SearchIndex]: Loaded " + terms.size() + " words, " + users.size() + " users up to #"
+                    + indexedSeq + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) + " ms");
+        }
+        this.indexer = new Thread(this::indexLoop, "search-indexer");
+        this.indexer.setDaemon(true);
+        this.indexer.start();
+    }
+
+    /**
+     * Lower-cased words of at least two letters or digits.
+     */
+    static void tokenize(String text, Consumer<String> action) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start >= 2 && i - start <= MAX_TERM_LENGTH) action.accept(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+    }
+
+
+    private void indexLoop() {
+        long sinceSnapshot = 0;
+        while (running) {
+            long last = log.lastSeq();
+            if (last <= indexedSeq) {
+                LockSupport.parkNanos(POLL_NANOS);
+                continue;
+            }
+            long to = Math.min(last, indexedSeq + INDEX_CHUNK);
+            int n;
+            lock.writeLock().lock();
+            try {
+                n = log.forEach(indexedSeq + 1, to, this::add);
+                indexedSeq = to;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            sinceSnapshot += n;
+            if (sinceSnapshot >= snapshotLines) {
+                saveSnapshot();
+                sinceSnapshot = 0;
+            }
+        }
+    }
+
+    // writer lock held
+    private void add(MessageLog.Record r) {
+        // room lines are "[#room] [name]: text"
+        String body = ChatProtocol.stripRoom(r.text);
+        String sender = ChatProtocol.senderOf(body);
+        if (sender != null) {
+            body = body.substring(sender.length() + 3);
+            users.computeIfAbsent(sender.toLowerCase(), k -> new Postings()).add(r.seq);
+        }
+        Set<String> seen = new HashSet<>();
+        tokenize(body, t -> {
+            if (seen.add(t)) terms.computeIfAbsent(t, k -> new Postings()).add(r.seq);
+        });
+        if (linesIndexed % TIME_SAMPLE_INTERVAL == 0) {
+            if (sampleCount == sampleSeqs.length) {
+                sampleSeqs = Arrays.copyOf(sampleSeqs, sampleCount * 2);
+                sampleTimes = Arrays.copyOf(sampleTimes, sampleCount * 2);
+            }
+            sampleSeqs[sampleCount] = r.seq;
+            sampleTimes[sampleCount] = r.timestamp;
+            sampleCount++;
+        }
+        linesIndexed++;
+    }
+
+    /**
+     * Newest matching messages (at most q.limit), returned oldest first.
+     */
+    public List<MessageLog.Record> search(Query q) {
+        long t0 = System.nanoTime();
+        LinkedList<MessageLog.Record> results = new LinkedList<>();
+        List<Postings> lists = new ArrayList<>();
+        long fromSeq;
+        long upper;
+        lock.readLock().lock();
+        try {
+            for (String t : q.terms) lists.add(terms.get(t));
+            if (q.user != null) lists.add(users.get(q.user));
+            if (!lists.contains(null)) {
+                // drive the intersection from the rarest list
+                lists.sort(Comparator.comparingInt(p -> p.count));
+            }
+            fromSeq = seqAtOrBefore(q.fromMillis);
+            upper = seqAfter(q.toMillis);
+        } finally {
+            lock.readLock().unlock();
+        }
+        // walk back from the newest end in windows of the driving list's skip blocks, doubling
+        // each time, so asking for the latest few hits does not decode whole posting lists
+        int blocks = 1;
+        while (!lists.contains(null) && results.size() < q.limit && upper >= fromSeq) {
+            long lower;
+            long[] matches;
+            lock.readLock().lock();
+            try {
+                Postings driver = lists.get(0);
+                int k = driver.blockAtOrBefore(upper) - blocks + 1;
+                lower = k <= 0 ? fromSeq : Math.max(fromSeq, driver.skipSeqs[k]);
+                matches = intersect(lists, lower, upper);
+            } finally {
+                lock.readLock().unlock();
+            }
+            // fetch newest first, as many at a time as are still wanted, in one pass over the log
+            // per batch (a compressed block is inflated once per batch, not once per hit); the
+            // sampled seq bounds are approximate, so check exact times here
+            int end = matches.length;
+            while (end > 0 && results.size() < q.limit) {
+                int start = Math.max(0, end - (q.limit - results.size()));
+                List<MessageLog.Record> batch = new ArrayList<>(end - start);
+                log.forEachSeq(matches, start, end, r -> {
+                    if (r.timestamp >= q.fromMillis && r.timestamp <= q.toMillis
+                            && (q.rooms == null || q.rooms.contains(ChatProtocol.roomOf(r.text)))) {
+                        batch.add(r);
+                    }
+                });
+                for (int i = batch.size() - 1; i >= 0 && results.size() < q.limit; i--) results.addFirst(batch.get(i));
+                end = start;
+            }
+            upper = lower - 1;
+            blocks *= 2;
+        }
+        queries.incrementAndGet();
+        queryNanos.addAndGet(System.nanoTime() - t0);
+        return results;
+    }
+
+    // sequence numbers in [lower, upper] present in every list; reader lock held
+    private static long[] intersect(List<Postings> lists, long lower, long upper) {
+        List<Cursor> cursors = new ArrayList<>(lists.size());
+        for (Postings p : lists) cursors.add(new Cursor(p));
+        Cursor driver = cursors.get(0);
+        long[] matches = new long[16];
+        int n = 0;
+        long candidate = driver.advance(lower);
+        while (candidate >= 0 && candidate <= upper) {
+            long agreed = candidate;
+            for (int i = 1; i < cursors.size() && agreed == candidate; i++) {
+                agreed = cursors.get(i).advance(candidate);
+                if (agreed < 0) return Arrays.copyOf(matches, n);
+            }
+            if (agreed == candidate) {
+                if (n == matches.length) matches = Arrays.copyOf(matches, n * 2);
+                matches[n++] = candidate;
+                candidate = driver.next();
+            } else {
+                candidate = driver.advance(agreed);
+            }
+        }
+        return Arrays.copyOf(matches, n);
+    }
+
+    // a sequence number no later than the first message at or after time
+    private long seqAtOrBefore(long time) {
+        int i = lastSampleBefore(time);
+        return i < 0 ? 0 : sampleSeqs[i];
+    }
+
+    // a sequence number no earlier than the last message at or before time
+    private long seqAfter(long time) {
+        if (time == Long.MAX_VALUE) return Long.MAX_VALUE;
+        int i = lastSampleBefore(time + 1) + 1;
+        return i < sampleCount ? sampleSeqs[i] : Long.MAX_VALUE;
+    }
+
+    // last sample stamped before time, or -1
+    private int lastSampleBefore(long time) {
+        int lo = 0;
+        int hi = sampleCount - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sampleTimes[mid] < time) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // ---- persistence ----
+
+    // indexer thread (or close(), after it stopped) only
+    private void saveSnapshot() {
+        long t0 = System.nanoTime();
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(log.getLogId());
+                out.writeLong(indexedSeq);
+                out.writeLong(linesIndexed);
+                out.writeInt(sampleCount);
+                for (int i = 0; i < sampleCount; i++) {
+                    out.writeLong(sampleSeqs[i]);
+                    out.writeLong(sampleTimes[i]);
+                }
+                writePostings(out, terms);
+                writePostings(out, users);
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Log.info("[SearchIndex]: Saved snapshot up to #" + indexedSeq + " (" + snapshotFile.length() / 1024
+                    + " KB) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) + " ms");
+        } catch (IOException e) {
+            Log.error("[SearchIndex]: Could not save snapshot - " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    private static void writePostings(DataOutputStream out, Map<String, Postings> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, Postings> e : map.entrySet()) {
+            Postings p = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeInt(p.count);
+            out.writeLong(p.last);
+            out.writeInt(p.size);
+            out.write(p.data, 0, p.size);
+            out.writeInt(p.skipCount);
+            for (int i = 0; i < p.skipCount; i++) {
+                out.writeLong(p.skipSeqs[i]);
+                out.writeInt(p.skipPositions[i]);
+            }
+        }
+    }
+
+    private static void readPostings(DataInputStream in, Map<String, Postings> map) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String key = in.readUTF();
+            Postings p = new Postings();
+            p.count = in.readInt();
+            p.last = in.readLong();
+            p.size = in.readInt();
+            p.data = new byte[Math.max(16, p.size)];
+            in.readFully(p.data, 0, p.size);
+            p.skipCount = in.readInt();
+            p.skipSeqs = new long[Math.max(1, p.skipCount)];
+            p.skipPositions = new int[Math.max(1, p.skipCount)];
+            for (int j = 0; j < p.skipCount; j++) {
+                p.skipSeqs[j] = in.readLong();
+                p.skipPositions[j] = in.readInt();
+            }
+            map.put(key, p);
+        }
+    }
+
+    // constructor only; a snapshot from another log, or ahead of this one, is ignored
+    private boolean loadSnapshot() {
+        if (!snapshotFile.exists()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 64 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) return false;
+            long logId = in.readLong();
+            long seq = in.readLong();
+            if (logId != log.getLogId() || seq > log.lastSeq()) return false;
+            linesIndexed = in.readLong();
+            sampleCount = in.readInt();
+            sampleSeqs = new long[Math.max(1024, sampleCount)];
+            sampleTimes = new long[Math.max(1024, sampleCount)];
+            for (int i = 0; i < sampleCount; i++) {
+                sampleSeqs[i] = in.readLong();
+                sampleTimes[i] = in.readLong();
+            }
+            readPostings(in, terms);
+            readPostings(in, users);
+            indexedSeq = seq;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.warn("[SearchIndex]: Ignoring snapshot - " + e.getMessage());
+            terms.clear();
+            users.clear();
+            sampleCount = 0;
+            linesIndexed = 0;
+            indexedSeq = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Result line for display: "[Search] #seq yyyy-MM-dd HH:mm text".
+     */
+    public static String format(MessageLog.Record r) {
+        return "[Search] #" + r.seq + " " + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(r.timestamp)) + " " + r.text;
+    }
+
+    public long getIndexedSeq() {
+        return indexedSeq;
+    }
+
+    public String statsSummary() {
+        long n = queries.get();
+        int words;
+        int senders;
+        lock.readLock().lock();
+        try {
+            words = terms.size();
+            senders = users.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return "indexed up to #" + indexedSeq + ", " + words + " words, " + senders + " users, " + n
+                + " queries (avg " + (n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(queryNanos.get() / n)) + " us)";
+    }
+
+    /**
+     * Stops the indexer and writes a final snapshot; call before closing the log.
+     */
+    public void close() {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(indexer);
+        try {
+            indexer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        saveSnapshot();
+    }
+}
@@ -1,99 +1,885 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.io.*;
 
 public class Server {
     private int port;
+    private ServerConfig config;
     private ServerSocket serverSocket;
-    private ExecutorService pool = Executors.newCachedThreadPool();
-    private Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    private NioServer nioServer;
+    private ExecutorService pool;
+    private VirtualThreadMonitor virtualMonitor;
+    private Set<ClientConnection> clients = ConcurrentHashMap.newKeySet();
+    // rooms by name, created on first join and removed when the last member leaves
+    private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final ChatRoom lobby;
+    // lower-cased username -> connected client, so direct messages need no scan of clients
+    private final ConcurrentHashMap<String, ClientConnection> usersByName = new ConcurrentHashMap<>();
+    // direct messages waiting for users who are offline, oldest first
+    private final ConcurrentHashMap<String, Deque<String>> offlineMessages = new ConcurrentHashMap<>();
+    private final AtomicLong directDelivered = new AtomicLong();
+    private final AtomicLong directQueued = new AtomicLong();
+    private final AtomicLong directDropped = new AtomicLong();
+    // set by the first stop(); later calls return at once
+    private final AtomicBoolean stopped = new AtomicBoolean();
     // Optional DB helper (can be null or disabled)
-    private DBHelper dbHelper;
-    private List<MessageListener> listeners = new CopyOnWriteArrayList<>();
-    // keep an in-memory history (recent messages)
-    private Deque<String> history = new ConcurrentLinkedDeque<>();
+    private volatile DBHelper dbHelper;
+    // runs MessageListeners on their own threads, off the broadcast path
+    private final ListenerBus listeners;
     private final int HISTORY_LIMIT = 1000;
+    // most lines one /history command replays
+    private final int REPLAY_LIMIT = 1000;
+    // recent lines each room other than the lobby keeps for members who join later
+    private final int ROOM_HISTORY_LIMIT = 200;
+    // keep an in-memory history (recent messages) with sequence numbers
+    private final HistoryRing history = new HistoryRing(HISTORY_LIMIT);
+    // resuming clients must present the same epoch: the message log's id when there is one
+    // (sequence numbers then continue across restarts), otherwise this run's start time
+    private long epoch = System.currentTimeMillis();
+    private final AtomicLong resumeBytesSaved = new AtomicLong();
+    private long recoveryNanos;
     private File historyFile;
+    private volatile HistoryJournal journal;
+    private MessageLog messageLog;
+    private volatile SearchIndex searchIndex;
+    // heap allocated per inbound line on the reading thread
+    private final AllocationMeter inbound = new AllocationMeter();
+    // broadcast fan-out threads; null when chat.dispatch.shards=0 and senders fan out themselves
+    private final BroadcastDispatcher dispatcher;
+    // links to the other nodes of a cluster; null when this server runs alone
+    private final ClusterRelay cluster;
+    // hot-path counters and latency histograms, served by the stats port and the GUI
+    private final Metrics metrics = new Metrics();
+    private StatsServer statsServer;
 
     public Server(int port) {
+        this(port, ServerConfig.fromSystemProperties());
+    }
+
+    public Server(int port, ServerConfig config) {
         this.port = port;
-        this.dbHelper = new DBHelper(); // will be inert if not configured
+        this.config = config;
+        Log.setLevel(config.logLevel);
+        this.listeners = new ListenerBus(config.listenerQueue, config.listenerMaxBatch, config.listenerPolicy);
+        this.dispatcher = config.dispatchShards > 0
+                ? new BroadcastDispatcher(config.dispatchShards, config.dispatchQueue, metrics) : null;
+        this.lobby = new ChatRoom(ChatProtocol.LOBBY, HISTORY_LIMIT, shardCount());
+        rooms.put(lobby.getName(), lobby);
+        // relayed lines are in this node's history, so what was delivered is kept next to it
+        this.cluster = config.clusterPort > 0 || !ClusterRelay.parsePeers(config.clusterPeers).isEmpty()
+                ? new ClusterRelay(this, config.clusterNode != null ? config.clusterNode : "node-" + port,
+                        config.clusterPort, config.clusterPeers, new File("cluster.state"),
+                        config.clusterReplay, config.clusterQueue)
+                : null;
+        this.dbHelper = new DBHelper(config); // will be inert if not configured
         // prepare history file in the working directory
         try {
             historyFile = new File("server_chat_history.txt");
             if (!historyFile.exists()) historyFile.createNewFile();
+            openMessageLog();
+            recoverHistory();
+            // the tail is in memory now; move an oversized journal aside and gzip it
+            HistoryArchive.rotateIfLarger(historyFile, config.journalRotateMb * 1024L * 1024L);
+            journal = new HistoryJournal(historyFile, messageLog, history.nextSeq(), config.journalCapacity,
+                    config.journalFsync, config.journalFsyncMs);
+        } catch (IOException e) {
+            Log.error("[Server]: Could not create history file - " + e.getMessage());
+        }
+        if (config.mode == ServerConfig.Mode.VIRTUAL) {
+            pool = VirtualThreadMonitor.newVirtualThreadExecutor();
+            if (pool == null) {
+                Log.warn("[Server]: Virtual threads not available on this JDK, using a thread pool");
+                config.mode = ServerConfig.Mode.BLOCKING;
+            }
+        }
+        if (pool == null) pool = Executors.newCachedThreadPool();
+    }
+
+    private void openMessageLog() {
+        if (!config.logEnabled) return;
+        try {
+            messageLog = new MessageLog(new File(config.logDir), config.logSegmentMb * 1024L * 1024L,
+                    config.logIndexIntervalBytes, config.logMaxSegments,
+                    TimeUnit.HOURS.toMillis(config.logRetentionHours),
+                    config.logHotSegments, config.logBlockKb * 1024, config.logCompressionLevel);
+            epoch = messageLog.getLogId();
+        } catch (IOException e) {
+            Log.error("[Server]: Could not open message log - " + e.getMessage());
+            messageLog = null;
+            return;
+        }
+        if (config.searchEnabled) {
+            searchIndex = new SearchIndex(messageLog, new File(config.logDir, "search.idx"), config.searchSnapshotLines);
+        }
+    }
+
+    /**
+     * Warm restart: refills the in-memory history so clients joining right after a restart
+     * still see the recent backlog. Uses the message log (keeping the original sequence
+     * numbers) when it has data, otherwise the tail of the text journal, which then also
+     * seeds an empty message log.
+     */
+    private void recoverHistory() throws IOException {
+        long t0 = System.nanoTime();
+        int recovered;
+        String source;
+        if (messageLog != null && messageLog.lastSeq() > 0) {
+            long last = messageLog.lastSeq();
+            recovered = messageLog.forEach(Math.max(1, last - HISTORY_LIMIT + 1), last,
+                    r -> history.restore(r.seq, r.timestamp, r.text, ChatProtocol.encodeLine(r.text)));
+            source = config.logDir;
+        } else {
+            List<String> tail = HistoryJournal.readTail(historyFile, HISTORY_LIMIT);
+            List<HistoryRing.Entry> entries = new ArrayList<>(tail.size());
+            for (String line : tail) {
+                entries.add(history.add(line, ChatProtocol.encodeLine(line)));
+            }
+            if (messageLog != null) backfillMessageLog(entries);
+            recovered = tail.size();
+            source = historyFile.getName() + " (" + historyFile.length() + " bytes)";
+        }
+        // lobby history for plain clients; other rooms start empty after a restart
+        history.forEachAfter(0, e -> {
+            if (ChatProtocol.LOBBY.equals(ChatProtocol.roomOf(e.text()))) lobby.history().add(e.text(), e.line);
+        });
+        recoveryNanos = System.nanoTime() - t0;
+        Log.info("[Server]: Recovered " + recovered + " history lines from " + source
+                + " in " + TimeUnit.NANOSECONDS.toMillis(recoveryNanos) + " ms");
+    }
+
+    // the message log is empty (new, or its directory was removed): give it the lines recovered
+    // from the journal so /history, resume and search cover them too; the journal keeps no
+    // times, so they are stamped with the time of the restart
+    private void backfillMessageLog(List<HistoryRing.Entry> entries) {
+        try {
+            for (HistoryRing.Entry e : entries) {
+                ByteBuffer text = e.line.duplicate();
+                text.limit(text.limit() - 1); // without the '\n'
+                messageLog.append(e.seq, e.timestamp, text);
+            }
+            messageLog.flush();
         } catch (IOException e) {
-            System.err.println("[Server]: Could not create history file - " + e.getMessage());
+            Log.error("[Server]: Could not copy recovered history into the message log - " + e.getMessage());
         }
     }
 
+    public long getRecoveryNanos() {
+        return recoveryNanos;
+    }
+
     public void start() {
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                Log.error("[Server]: Could not start cluster relay - " + e.getMessage());
+            }
+        }
+        if (config.statsPort > 0) {
+            statsServer = new StatsServer(this, config.statsPort);
+            try {
+                statsServer.start();
+            } catch (IOException e) {
+                Log.error("[Server]: Could not open stats port " + config.statsPort + " - " + e.getMessage());
+                statsServer = null;
+            }
+        }
+        if (config.mode == ServerConfig.Mode.NIO) {
+            startNio();
+            return;
+        }
         try {
-            serverSocket = new ServerSocket(port);
-            logToListeners("[Server]: Listening on port " + port);
+            // channel-backed socket so ClientHandler can write shared ByteBuffers directly
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
+            if (config.mode == ServerConfig.Mode.VIRTUAL) {
+                logToListeners("[Server]: Listening on port " + port + " (virtual threads)");
+                virtualMonitor = new VirtualThreadMonitor();
+                virtualMonitor.start(this, config.pinThresholdMs, config.virtualReportSeconds);
+            } else {
+                logToListeners("[Server]: Listening on port " + port);
+            }
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 logToListeners("[Server]: Client connected from " + clientSocket.getRemoteSocketAddress());
                 ClientHandler handler = new ClientHandler(clientSocket, this);
-                clients.add(handler);
                 pool.execute(handler);
             }
         } catch (IOException e) {
-            logToListeners("[Server]: Error - " + e.getMessage());
+            // closing the listening socket is how stop() ends this loop
+            if (!stopped.get()) logToListeners("[Server]: Error - " + e.getMessage());
         } finally {
             stop();
         }
     }
 
-    public void stop() {
+    private void startNio() {
+        nioServer = new NioServer(this, port, config.eventLoops);
+        try {
+            nioServer.run();
+        } catch (IOException e) {
+            if (!stopped.get()) logToListeners("[Server]: Error - " + e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Closes everything and prints the statistics; runs once, whether from the shutdown hook,
+     * the GUI or the end of start().
+     */
+    public synchronized void stop() {
+        if (!stopped.compareAndSet(false, true)) return;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
+            if (nioServer != null) nioServer.stop();
+            if (statsServer != null) statsServer.close();
             pool.shutdownNow();
-            System.out.println("[Server]: Stopped");
+            if (virtualMonitor != null) virtualMonitor.stop();
+            DBHelper db = dbHelper;
+            dbHelper = null;
+            if (db != null && db.isConfigured()) {
+                db.close();
+                Log.info("[Server]: Database - " + db.statsSummary());
+            }
+            HistoryJournal j = journal;
+            journal = null;
+            if (j != null) {
+                if (cluster != null) {
+                    String summary = cluster.statsSummary();
+                    cluster.close();
+                    Log.info("[Server]: Cluster - " + summary);
+                }
+                if (dispatcher != null) {
+                    dispatcher.close();
+                    Log.info("[Server]: Dispatcher - " + dispatcher.statsSummary());
+                }
+                j.close();
+                Log.info("[Server]: History journal - " + j.statsSummary());
+                listeners.close();
+                Log.info("[Server]: Listeners - " + listeners.statsSummary());
+                Log.info("[Server]: Inbound - " + inbound.summary("raw chat lines"));
+                Log.info("[Server]: Direct messages - " + directDelivered.get() + " delivered, "
+                        + directQueued.get() + " queued for offline users, " + directDropped.get() + " dropped");
+                SearchIndex index = searchIndex;
+                searchIndex = null;
+                if (index != null) {
+                    index.close();
+                    Log.info("[Server]: Search index - " + index.statsSummary());
+                }
+                if (messageLog != null) {
+                    messageLog.close();
+                    Log.info("[Server]: Message log - " + messageLog.statsSummary());
+                }
+                Log.info("[Server]: Log - " + Log.statsSummary());
+            }
+            Log.info("[Server]: Stopped");
         } catch (IOException e) {
-            System.err.println("[Server]: Error closing server - " + e.getMessage());
+            Log.error("[Server]: Error closing server - " + e.getMessage());
         }
+        Log.flush(1000);
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    <T> OutboundQueue<T> newOutboundQueue() {
+        return new OutboundQueue<>(config.outboundCapacity, config.outboundPolicy, config.disconnectAfter);
     }
 
-    public void broadcast(String message, ClientHandler from) {
-        logToListeners("[Server]: Broadcasting - " + message);
-        addToHistory(message);
+    /**
+     * Runs a per-client task (e.g. a ClientHandler writer) on the client executor.
+     */
+    void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    void slowConsumerDisconnected(ClientConnection client) {
+        logToListeners("[Server]: Disconnecting slow consumer " + client.getUsername()
+                + " (" + OutboundQueue.statsSummary() + ")");
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Live numbers for the stats port and the server GUI: clients, message rates, latency
+     * percentiles of the broadcast path and queue depths.
+     */
+    public String statsReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("uptime ").append(metrics.uptimeSeconds()).append("s, mode ")
+                .append(config.mode.name().toLowerCase()).append(", ").append(clients.size())
+                .append(" clients, ").append(rooms.size()).append(" rooms\n");
+        sb.append(String.format("messages in:  %d (%.1f/s)\n", metrics.messagesIn.sum(), metrics.inPerSecond()));
+        sb.append(String.format("messages out: %d (%.1f/s)\n", metrics.messagesOut.sum(), metrics.outPerSecond()));
+        sb.append("broadcast:    ").append(metrics.broadcast.summary()).append('\n');
+        sb.append("fan-out:      ").append(metrics.fanout.summary()).append('\n');
+        sb.append("history:      ").append(metrics.history.summary()).append('\n');
+        DBHelper db = dbHelper;
+        if (db != null && db.isConfigured()) {
+            sb.append("db insert:    ").append(db.getInsertTimes().summary()).append('\n');
+            sb.append("db batch:     ").append(db.getBatchTimes().summary()).append('\n');
+            sb.append("db queue:     ").append(db.getQueueDepth()).append('\n');
+        } else {
+            sb.append("db:           not configured\n");
+        }
+        long queued = 0;
+        int deepest = 0;
+        int backedUp = 0;
+        String deepestName = null;
+        for (ClientConnection c : clients) {
+            int d = c.queueDepth();
+            queued += d;
+            if (d > 0) backedUp++;
+            if (d > deepest) {
+                deepest = d;
+                deepestName = c.getUsername();
+            }
+        }
+        sb.append("outbound:     ").append(queued).append(" queued, ").append(backedUp).append(" clients behind");
+        if (deepestName != null) sb.append(", deepest ").append(deepest).append(" (").append(deepestName).append(')');
+        sb.append('\n');
+        if (dispatcher != null) sb.append("dispatcher:   ").append(dispatcher.queueDepth()).append(" queued\n");
+        return sb.toString();
+    }
+
+    /**
+     * Clears the latency histograms, e.g. between two load runs.
+     */
+    public void resetStats() {
+        metrics.resetHistograms();
+        DBHelper db = dbHelper;
+        if (db != null) {
+            db.getInsertTimes().reset();
+            db.getBatchTimes().reset();
+        }
+    }
+
+    private int shardCount() {
+        return dispatcher != null ? dispatcher.shardCount() : 1;
+    }
+
+    /**
+     * Called by either transport with the first line the client sent: a plain username or
+     * a "/resume" handshake.
+     */
+    void clientJoined(ClientConnection client, String firstLine) {
+        // a repeated or late "/frames" handshake is never taken as a name
+        if (Frames.parseHandshake(firstLine) != null) firstLine = null;
+        ChatProtocol.Resume resume = ChatProtocol.parseResume(firstLine);
+        String name = resume != null ? resume.username : firstLine;
+        String wanted = name != null && !name.trim().isEmpty() ? name.trim() : client.getUsername();
+        // a name that could pass for a room tag or another sender is not taken as given
+        String requested = wanted;
+        if (!ChatProtocol.isValidUsername(wanted)) {
+            String cleaned = ChatProtocol.cleanUsername(wanted);
+            wanted = cleaned.isEmpty() ? "User" : cleaned;
+        }
+        client.setUsername(claimName(client, wanted));
+        Log.info("[Server]: " + client.getUsername() + " joined");
+        // start live delivery before the replay so nothing falls in between (at worst a
+        // line arrives twice, and resuming clients drop it by its sequence number)
+        if (resume != null) client.setSequenced(true);
+        if (dispatcher != null) dispatcher.register(client);
+        clients.add(client);
+        joinRoom(client, lobby.getName());
+        // send recent history to this client before broadcasting join
+        if (resume != null) {
+            sendResumeTo(client, resume.epoch, resume.seq);
+        } else {
+            sendHistoryTo(client);
+        }
+        if (!requested.equals(wanted)) {
+            client.sendMessage("[Server]: The name " + requested + " is not allowed, you are " + client.getUsername());
+        } else if (!client.getUsername().equals(wanted)) {
+            client.sendMessage("[Server]: The name " + wanted + " is taken, you are " + client.getUsername());
+        }
+        deliverOfflineMessages(client.getUsername());
+        broadcastToRoom(lobby, "[Server]: " + client.getUsername() + " has joined the chat", client);
+    }
+
+    // first free name among wanted, wanted2, wanted3, ... (case-insensitive), registered for client
+    private String claimName(ClientConnection client, String wanted) {
+        String name = wanted;
+        for (int i = 2; usersByName.putIfAbsent(name.toLowerCase(), client) != null; i++) {
+            name = wanted + i;
+        }
+        return name;
+    }
+
+    /**
+     * Looks up a connected client by username (case-insensitive) without scanning.
+     */
+    public ClientConnection findClient(String username) {
+        return usersByName.get(username.toLowerCase());
+    }
+
+    // "/msg <user> <text>"
+    private void handleDirectMessage(ClientConnection from, String line) {
+        String[] parts = line.trim().split("\\s+", 3);
+        if (parts.length < 3 || !parts[0].equals(ChatProtocol.MSG)) {
+            from.sendMessage("[Server]: usage: /msg <user> <text>");
+            return;
+        }
+        String to = parts[1];
+        String text = parts[2];
+        ClientConnection target = findClient(to);
+        if (target != null) {
+            target.sendMessage("[" + from.getUsername() + "] (private): " + text);
+            from.sendMessage("[" + from.getUsername() + "] (private to " + target.getUsername() + "): " + text);
+            directDelivered.incrementAndGet();
+            return;
+        }
+        String stamp = new SimpleDateFormat("HH:mm").format(new Date());
+        if (queueOfflineMessage(to, "[" + from.getUsername() + "] (private, sent " + stamp + "): " + text)) {
+            from.sendMessage("[" + from.getUsername() + "] (private to " + to + ", offline - delivered when they log in): " + text);
+        } else {
+            from.sendMessage("[Server]: Could not store a message for " + to + ", too many offline mailboxes");
+        }
+        // the user may have logged in between the lookup and the queueing
+        if (findClient(to) != null) deliverOfflineMessages(to);
+    }
+
+    private boolean queueOfflineMessage(String username, String line) {
+        boolean[] stored = new boolean[1];
+        offlineMessages.compute(username.toLowerCase(), (k, q) -> {
+            if (q == null) {
+                if (offlineMessages.size() >= config.dmMaxMailboxes) return null;
+                q = new ArrayDeque<>();
+            }
+            q.addLast(line);
+            stored[0] = true;
+            // keep the newest messages when a mailbox overflows
+            while (q.size() > Math.max(1, config.dmOfflineLimit)) {
+                q.pollFirst();
+                directDropped.incrementAndGet();
+            }
+            return q;
+        });
+        if (stored[0]) directQueued.incrementAndGet();
+        else directDropped.incrementAndGet();
+        return stored[0];
+    }
+
+    // remove() hands the mailbox to exactly one caller, so nothing is delivered twice
+    private void deliverOfflineMessages(String username) {
+        Deque<String> q = offlineMessages.remove(username.toLowerCase());
+        ClientConnection client = findClient(username);
+        if (q == null) return;
+        if (client == null) {
+            // left again: put the mailbox back as it was, ahead of anything queued since; these
+            // lines were already counted as queued
+            offlineMessages.merge(username.toLowerCase(), q, (taken, newer) -> {
+                taken.addAll(newer);
+                return taken;
+            });
+            return;
+        }
+        for (String line : q) client.sendMessage(line);
+        directDelivered.addAndGet(q.size());
+    }
+
+    void messageReceived(ClientConnection client, String line) {
+        if (line.startsWith(ChatProtocol.HISTORY)) {
+            handleHistoryCommand(client, line);
+            return;
+        }
+        if (line.startsWith(ChatProtocol.SEARCH)) {
+            handleSearchCommand(client, line);
+            return;
+        }
+        if (line.startsWith(ChatProtocol.MSG)) {
+            handleDirectMessage(client, line);
+            return;
+        }
+        if (line.startsWith(ChatProtocol.JOIN) || line.startsWith(ChatProtocol.LEAVE)
+                || line.startsWith(ChatProtocol.ROOMS)) {
+            handleRoomCommand(client, line);
+            return;
+        }
+        ChatRoom room = client.getRoom();
+        if (room == null) {
+            client.sendMessage("[Server]: You are not in a room - /join <room> first");
+            return;
+        }
+        String formatted = "[" + client.getUsername() + "]: " + line;
+        Log.debug(() -> "[Server]: Received - " + formatted);
+        metrics.messagesIn.increment();
+        broadcastToRoom(room, formatted, client);
+    }
+
+    /**
+     * A line straight from a client's read buffer (length len, terminator already removed).
+     * Commands go the String way; a chat line is copied once into its encoded broadcast
+     * form, behind the room tag and the client's cached "[username]: " prefix, and its text
+     * is only decoded if debug logging, a listener, the database or the cluster needs it.
+     */
+    void messageReceived(ClientConnection client, byte[] buf, int len) {
+        ChatRoom room = client.getRoom();
+        if ((len > 0 && buf[0] == '/') || room == null) {
+            messageReceived(client, new String(buf, 0, len, StandardCharsets.UTF_8));
+            return;
+        }
+        // only chat lines are metered; a /search or /history answer would swamp the average
+        long mark = inbound.start();
+        try {
+            metrics.messagesIn.increment();
+            long t0 = System.nanoTime();
+            byte[] tag = room.tag();
+            byte[] prefix = client.linePrefix();
+            byte[] line = new byte[tag.length + prefix.length + len + 1];
+            System.arraycopy(tag, 0, line, 0, tag.length);
+            System.arraycopy(prefix, 0, line, tag.length, prefix.length);
+            System.arraycopy(buf, 0, line, tag.length + prefix.length, len);
+            line[line.length - 1] = '\n';
+            HistoryRing.Entry entry = record(null, ByteBuffer.wrap(line).asReadOnlyBuffer(), client, null);
+            deliverToRoom(room, entry);
+            if (cluster != null) cluster.publish(room.getName(), ChatProtocol.stripRoom(entry.text()));
+            metrics.broadcast.recordSince(t0);
+        } finally {
+            inbound.end(mark);
+        }
+    }
+
+    void clientLeft(ClientConnection client) {
+        List<ChatRoom> left = new ArrayList<>(client.getRooms());
+        removeClient(client);
+        for (ChatRoom room : left) {
+            if (room.isLobby() || room.size() > 0) {
+                broadcastToRoom(room, "[Server]: " + client.getUsername() + " has left the chat", client);
+            }
+        }
+    }
+
+    // "/join <room>" (also switches the current room), "/leave [room]", "/rooms"
+    private void handleRoomCommand(ClientConnection client, String line) {
+        String[] parts = line.trim().split("\\s+");
+        String command = parts[0];
+        String name = parts.length > 1 ? parts[1] : null;
+        if (command.equals(ChatProtocol.ROOMS)) {
+            StringBuilder sb = new StringBuilder("[Server]: Rooms:");
+            for (ChatRoom r : rooms.values()) {
+                sb.append(' ').append(r.getName()).append(" (").append(r.size()).append(')');
+                if (r == client.getRoom()) sb.append('*');
+            }
+            client.sendMessage(sb.toString());
+        } else if (command.equals(ChatProtocol.JOIN) && ChatProtocol.isValidRoomName(name)) {
+            ChatRoom room = rooms.get(name);
+            if (room != null && client.getRooms().contains(room)) {
+                client.setRoom(room);
+                client.sendMessage("[Server]: Now talking in #" + name);
+                return;
+            }
+            room = joinRoom(client, name);
+            client.sendMessage("[Server]: Joined #" + name + " (" + room.size() + " members)");
+            // recent lines of the room, without sequence numbers: those belong to the lobby stream
+            room.history().forEachAfter(0, e -> client.send(unsequenced(client, e)));
+            broadcastToRoom(room, "[Server]: " + client.getUsername() + " joined #" + name, client);
+        } else if (command.equals(ChatProtocol.LEAVE)) {
+            ChatRoom current = client.getRoom();
+            ChatRoom room = name != null ? rooms.get(name) : current;
+            if (room == null || !client.getRooms().contains(room)) {
+                client.sendMessage("[Server]: You are not in " + (name != null ? "#" + name : "a room"));
+                return;
+            }
+            broadcastToRoom(room, "[Server]: " + client.getUsername() + " left #" + room.getName(), client);
+            leaveRoom(client, room);
+            if (room == current) {
+                // fall back to the lobby, if still a member, otherwise to any remaining room
+                ChatRoom next = client.getRooms().contains(lobby) ? lobby : null;
+                for (ChatRoom r : client.getRooms()) {
+                    if (next == null) next = r;
+                }
+                client.setRoom(next);
+            }
+            client.sendMessage("[Server]: Left #" + room.getName()
+                    + (client.getRoom() != null ? ", now talking in #" + client.getRoom().getName() : ""));
+        } else {
+            client.sendMessage("[Server]: usage: /join <room> | /leave [room] | /rooms (room names: letters, digits, - and _)");
+        }
+    }
+
+    /**
+     * Adds client to the named room, creating it if needed, and makes it the current room.
+     */
+    private ChatRoom joinRoom(ClientConnection client, String name) {
+        // compute() is atomic per key, so a room being dropped by its last member can not
+        // swallow a concurrent join
+        ChatRoom room = rooms.compute(name, (k, r) -> {
+            if (r == null) r = new ChatRoom(k, ROOM_HISTORY_LIMIT, shardCount());
+            r.add(client);
+            return r;
+        });
+        client.getRooms().add(room);
+        client.setRoom(room);
+        return room;
+    }
+
+    private void leaveRoom(ClientConnection client, ChatRoom room) {
+        client.getRooms().remove(room);
+        rooms.computeIfPresent(room.getName(), (k, r) -> {
+            r.remove(client);
+            return r.members().isEmpty() && !r.isLobby() ? null : r;
+        });
+    }
+
+    /**
+     * Server-wide announcement: goes to every connected client whatever room it is in.
+     */
+    public void broadcast(String message, ClientConnection from) {
+        if (message == null) return;
+        long t0 = System.nanoTime();
+        deliverToAll(record(message, from, null));
+        if (cluster != null) cluster.publish(ClusterRelay.EVERYONE, message);
+        metrics.broadcast.recordSince(t0);
+    }
+
+    private void deliverToAll(HistoryRing.Entry entry) {
+        // the rings share the encoded line; their entries decode it again only if asked
+        lobby.history().add(null, entry.line);
+        if (dispatcher != null) {
+            dispatcher.publish(entry, null);
+            return;
+        }
+        // the line is encoded once and the same read-only buffer is queued for every client
+        long t0 = System.nanoTime();
+        int n = 0;
+        for (ClientConnection client : clients) {
+            client.send(entry.forClient(client));
+            n++;
+        }
+        metrics.fanout.recordSince(t0);
+        metrics.messagesOut.add(n);
+    }
+
+    /**
+     * Sends a line to the members of one room only, so the cost depends on the room size.
+     * Lines outside the lobby are tagged "[#room] ".
+     */
+    public void broadcastToRoom(ChatRoom room, String message, ClientConnection from) {
+        if (message == null) return;
+        long t0 = System.nanoTime();
+        deliverToRoom(room, record(ChatProtocol.roomLine(room.getName(), message), from, null));
+        if (cluster != null) cluster.publish(room.getName(), message);
+        metrics.broadcast.recordSince(t0);
+    }
+
+    private void deliverToRoom(ChatRoom room, HistoryRing.Entry entry) {
+        room.history().add(null, entry.line);
+        if (dispatcher != null) {
+            dispatcher.publish(entry, room);
+            return;
+        }
+        long t0 = System.nanoTime();
+        int n = 0;
+        for (ClientConnection client : room.members()) {
+            client.send(entry.forClient(client));
+            n++;
+        }
+        metrics.fanout.recordSince(t0);
+        metrics.messagesOut.add(n);
+    }
+
+    /**
+     * A broadcast relayed by another cluster node: delivered to the local clients and kept in
+     * the local history (so every node's history has every node's lines), but not relayed again
+     * and not written to the database, which the origin node already did.
+     */
+    void relayedFromPeer(String origin, String scope, String message) {
+        if (ClusterRelay.EVERYONE.equals(scope)) {
+            deliverToAll(record(message, null, origin));
+            return;
+        }
+        if (!ChatProtocol.isValidRoomName(scope)) return;
+        HistoryRing.Entry entry = record(ChatProtocol.roomLine(scope, message), null, origin);
+        // a room without local members only goes to the history
+        ChatRoom room = rooms.get(scope);
+        if (room != null) deliverToRoom(room, entry);
+    }
+
+    // encodes a line once and records it in the history, the journal and (for lines that
+    // started on this node, origin null) the database
+    private HistoryRing.Entry record(String message, ClientConnection from, String origin) {
+        return record(message, ChatProtocol.encodeLine(message), from, origin);
+    }
+
+    // message may be null for a line that is only available encoded; the text is then decoded
+    // only for debug logging, listeners or the database
+    private HistoryRing.Entry record(String message, ByteBuffer line, ClientConnection from, String origin) {
+        HistoryRing.Entry entry = addToHistory(message, line);
+        boolean debug = Log.isEnabled(Log.Level.DEBUG);
+        if (debug || !listeners.isEmpty()) {
+            String text = origin == null ? "[Server]: Broadcasting - " + entry.text()
+                    : "[Server]: Relayed from " + origin + " - " + entry.text();
+            if (debug) Log.debug(text);
+            listeners.publish(text);
+        }
         // Save to DB (optional)
-        if (dbHelper != null && dbHelper.isConfigured()) {
+        DBHelper db = dbHelper;
+        if (origin == null && db != null && db.isConfigured()) {
             String username = from != null ? from.getUsername() : "Server";
-            dbHelper.insertMessage(username, message);
+            db.insertMessage(username, entry.text());
         }
+        return entry;
+    }
 
-        // Send to all connected clients (including the sender) so everyone sees the same stream
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+    // package-private for the benchmarks
+    HistoryRing.Entry addToHistory(String message, ByteBuffer line) {
+        long t0 = System.nanoTime();
+        HistoryRing.Entry entry = history.add(message, line);
+        // append to disk on the journal thread
+        HistoryJournal j = journal;
+        if (j != null) j.append(entry);
+        metrics.history.recordSince(t0);
+        return entry;
+    }
+
+    public void sendHistoryTo(ClientConnection client) {
+        // send the lobby's recent lines to a client, reusing the encoded lines
+        lobby.history().forEachAfter(0, e -> client.send(unsequenced(client, e)));
+    }
+
+    // a room ring's line without its (room-local) sequence number, as this client reads it
+    private static ByteBuffer unsequenced(ClientConnection client, HistoryRing.Entry e) {
+        return client.isFramed() ? Frames.encodeLine(0, e.text(), client.acceptsDeflate()) : e.line;
+    }
+
+    /**
+     * Resume handshake: replays only what the client has not seen yet. Falls back to the
+     * full history when the client's epoch is from another run or its position has
+     * already scrolled out of the ring.
+     */
+    void sendResumeTo(ClientConnection client, long clientEpoch, long lastSeq) {
+        boolean usable = clientEpoch == epoch && lastSeq >= history.firstSeq() - 1 && lastSeq <= history.lastSeq();
+        long after = usable ? lastSeq : 0;
+        client.sendMessage(ChatProtocol.resumeReply(epoch, history.lastSeq()));
+        // skipped lines, their bytes, and lines of other rooms
+        long[] skipped = new long[3];
+        int sent = history.forEachAfter(0, e -> {
+            // a reconnected client is only in the lobby; lines of other rooms are not replayed
+            if (!ChatProtocol.LOBBY.equals(ChatProtocol.roomOf(e.text()))) {
+                skipped[2]++;
+            } else if (e.seq <= after) {
+                skipped[0]++;
+                skipped[1] += e.line.remaining();
+            } else {
+                client.send(e.forClient(client));
+            }
+        });
+        if (after > 0) {
+            long total = resumeBytesSaved.addAndGet(skipped[1]);
+            logToListeners("[Server]: " + client.getUsername() + " resumed after #" + after + " - sent "
+                    + (sent - skipped[0] - skipped[2]) + " lines, skipped " + skipped[0] + " (" + skipped[1]
+                    + " bytes saved, " + total + " total)");
         }
     }
 
-    private void addToHistory(String message) {
-        if (message == null) return;
-        history.addLast(message);
-        while (history.size() > HISTORY_LIMIT) history.pollFirst();
-        // append to disk
-        if (historyFile != null) {
-            try (FileWriter fw = new FileWriter(historyFile, true);
-                 BufferedWriter bw = new BufferedWriter(fw)) {
-                bw.write(message);
-                bw.newLine();
-            } catch (IOException e) {
-                System.err.println("[Server]: Failed to write history - " + e.getMessage());
+    /**
+     * Replays messages fromSeq..toSeq: from the message log when enabled (any age within
+     * retention), otherwise from the in-memory ring.
+     */
+    public int replay(long fromSeq, long toSeq, Consumer<MessageLog.Record> action) {
+        if (messageLog != null) return messageLog.forEach(fromSeq, toSeq, action);
+        return history.forEachAfter(fromSeq - 1, e -> {
+            if (e.seq <= toSeq) action.accept(new MessageLog.Record(e.seq, e.timestamp, e.text()));
+        });
+    }
+
+    /**
+     * Replays every message stamped at or after the given time (epoch millis).
+     */
+    public int replaySince(long timestampMillis, Consumer<MessageLog.Record> action) {
+        if (messageLog != null) return messageLog.forEachSince(timestampMillis, action);
+        return history.forEachAfter(0, e -> {
+            if (e.timestamp >= timestampMillis) action.accept(new MessageLog.Record(e.seq, e.timestamp, e.text()));
+        });
+    }
+
+    // "/history <fromSeq> <toSeq>" or "/history <minutes>m", answered to the asking client only
+    private void handleHistoryCommand(ClientConnection client, String line) {
+        String[] parts = line.trim().split("\\s+");
+        List<String> lines = new ArrayList<>();
+        // only lines the client could have seen, counted against the limit after filtering
+        Set<String> rooms = visibleRooms(client);
+        Consumer<MessageLog.Record> collect = r -> {
+            if (lines.size() < REPLAY_LIMIT && rooms.contains(ChatProtocol.roomOf(r.text))) lines.add(r.text);
+        };
+        try {
+            if (parts.length == 2 && parts[1].endsWith("m")) {
+                long minutes = Long.parseLong(parts[1].substring(0, parts[1].length() - 1));
+                replaySince(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutes), collect);
+            } else if (parts.length == 3) {
+                long from = Long.parseLong(parts[1]);
+                long to = Math.min(Long.parseLong(parts[2]), history.lastSeq());
+                // a window at a time until the page is full, as other rooms' lines are skipped
+                for (long lo = from; lo <= to && lines.size() < REPLAY_LIMIT; lo += REPLAY_LIMIT) {
+                    replay(lo, Math.min(to, lo + REPLAY_LIMIT - 1), collect);
+                }
+            } else {
+                client.sendMessage("[Server]: usage: /history <fromSeq> <toSeq> | /history <minutes>m");
+                return;
             }
+        } catch (NumberFormatException e) {
+            client.sendMessage("[Server]: usage: /history <fromSeq> <toSeq> | /history <minutes>m");
+            return;
         }
+        for (String l : lines) client.sendMessage(l);
+        client.sendMessage("[Server]: " + lines.size() + " history lines");
     }
 
-    public void sendHistoryTo(ClientHandler client) {
-        // send the current history snapshot to a client
-        for (String m : history) {
-            client.sendMessage(m);
+    /**
+     * Runs a full-text query against the search index; returns null when search is disabled.
+     */
+    public List<MessageLog.Record> search(SearchIndex.Query query) {
+        SearchIndex index = searchIndex;
+        return index != null ? index.search(query) : null;
+    }
+
+    // "/search <query>", answered to the asking client only
+    private void handleSearchCommand(ClientConnection client, String line) {
+        SearchIndex.Query query;
+        try {
+            query = SearchIndex.Query.parse(line.substring(ChatProtocol.SEARCH.length()));
+        } catch (IllegalArgumentException e) {
+            client.sendMessage("[Server]: " + e.getMessage()
+                    + " - usage: /search words [user:name] [since:2h] [from:yyyy-MM-dd] [to:yyyy-MM-dd] [limit:N]");
+            return;
+        }
+        query.rooms = visibleRooms(client);
+        long t0 = System.nanoTime();
+        List<MessageLog.Record> results = search(query);
+        if (results == null) {
+            client.sendMessage("[Server]: search is not enabled on this server");
+            return;
         }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0);
+        for (MessageLog.Record r : results) client.sendMessage(SearchIndex.format(r));
+        client.sendMessage("[Server]: " + results.size() + " search results in " + micros / 1000.0 + " ms");
+    }
+
+    // the lobby and the rooms the client is in; history and search only return lines of these
+    private static Set<String> visibleRooms(ClientConnection client) {
+        Set<String> rooms = new HashSet<>();
+        rooms.add(ChatProtocol.LOBBY);
+        for (ChatRoom room : client.getRooms()) rooms.add(room.getName());
+        return rooms;
+    }
+
+    public long getResumeBytesSaved() {
+        return resumeBytesSaved.get();
     }
 
     // expose history file for GUIs
@@ -105,6 +891,9 @@ public class Server {
      * Allows GUIs to send server-originated messages into the chat stream.
      */
     public void sendFromServer(String serverName, String message) {
+        // same rules as client names, so the prefix cannot pass for a room tag
+        if (!ChatProtocol.isValidUsername(serverName)) serverName = ChatProtocol.cleanUsername(serverName);
+        if (serverName.isEmpty()) serverName = "Server";
         String formatted = "[" + serverName + "]: " + message;
         broadcast(formatted, null);
     }
@@ -117,17 +906,19 @@ public class Server {
         listeners.remove(l);
     }
 
-    private void logToListeners(String message) {
-        // Print to console as well
-        System.out.println(message);
-        for (MessageListener l : listeners) {
-            l.onMessage(message);
-        }
+    void logToListeners(String message) {
+        // Log to the console as well
+        Log.info(message);
+        listeners.publish(message);
     }
 
-    public void removeClient(ClientHandler client) {
+    public void removeClient(ClientConnection client) {
         clients.remove(client);
-        System.out.println("[Server]: Client removed: " + client.getUsername());
+        if (dispatcher != null) dispatcher.unregister(client);
+        usersByName.remove(client.getUsername().toLowerCase(), client);
+        for (ChatRoom room : client.getRooms()) leaveRoom(client, room);
+        client.setRoom(null);
+        Log.info("[Server]: Client removed: " + client.getUsername() + " - " + client.flushSummary());
     }
 
     public static void main(String[] args) {
@@ -135,7 +926,12 @@ public class Server {
         if (args.length > 0) {
             try { port = Integer.parseInt(args[0]); } catch (NumberFormatException ignored) {}
         }
-        Server server = new Server(port);
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        // optional second argument selects the mode: blocking (default), virtual or nio
+        if (args.length > 1) config.mode = ServerConfig.parseMode(args[1], config.mode);
+        Server server = new Server(port, config);
+        // flush the history journal on Ctrl+C
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
         server.start();
     }
 }
@@ -0,0 +1,195 @@
+/**
+ * Tunables for the chat server. Defaults match the original behaviour except for the
+ * subsystems listed under "Changed defaults" in README.md; every value can be overridden
+ * with a -Dchat.* system property so the same build can be started in different modes
+ * and compared under the same load.
+ */
+public class ServerConfig {
+    public enum Mode { BLOCKING, VIRTUAL, NIO }
+
+    // how client sockets are serviced (-Dchat.mode=blocking|virtual|nio)
+    public Mode mode = Mode.BLOCKING;
+    // number of selector threads in NIO mode (-Dchat.nio.loops)
+    public int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // VIRTUAL mode: minimum pin duration that counts as a pinning event (-Dchat.virtual.pinThresholdMs)
+    public long pinThresholdMs = 20;
+    // VIRTUAL mode: seconds between carrier/pinning reports, 0 disables (-Dchat.virtual.reportSeconds)
+    public int virtualReportSeconds = 30;
+    // per-client outbound queue size (-Dchat.outbound.capacity)
+    public int outboundCapacity = 4096;
+    // what to do when a client's queue is full (-Dchat.outbound.policy=drop_oldest|drop_newest|disconnect)
+    // (disconnect by default: the client notices and can resume, where a drop policy loses lines silently)
+    public OutboundQueue.Policy outboundPolicy = OutboundQueue.Policy.DISCONNECT;
+    // DISCONNECT policy: overflowing messages tolerated first (-Dchat.outbound.disconnectAfter)
+    public int disconnectAfter = 0;
+    // most queued messages coalesced into one socket write (-Dchat.outbound.maxBatch)
+    public int outboundMaxBatch = 1024;
+    // how long a writer waits for more messages before flushing, 0 = flush what is pending (-Dchat.outbound.maxLatencyMs)
+    public int outboundMaxLatencyMs = 0;
+    // when the history journal forces to disk (-Dchat.journal.fsync=never|interval|batch)
+    public HistoryJournal.FsyncPolicy journalFsync = HistoryJournal.FsyncPolicy.INTERVAL;
+    // INTERVAL policy: milliseconds between fsyncs (-Dchat.journal.fsyncMs)
+    public int journalFsyncMs = 1000;
+    // lines the journal may fall behind before broadcasters wait (-Dchat.journal.capacity)
+    public int journalCapacity = 65536;
+    // text journal size that triggers a gzip-archived rotation at startup, 0 = never (-Dchat.journal.rotateMb)
+    public int journalRotateMb = 64;
+    // DB logging overrides for DBHelper's constants, e.g. an embedded database (-Dchat.db.url/user/password)
+    public String dbUrl;
+    public String dbUser;
+    public String dbPassword;
+    // pooled connections, one batch writer thread each (-Dchat.db.poolSize)
+    public int dbPoolSize = 2;
+    // rows waiting for the database before new ones are dropped (-Dchat.db.queue)
+    public int dbQueueCapacity = 10000;
+    // rows per executeBatch (-Dchat.db.batchSize) and longest a row waits for a batch to fill (-Dchat.db.flushMs)
+    public int dbBatchSize = 200;
+    public int dbFlushMs = 100;
+    // how long a broadcaster may wait for room in a full DB queue before dropping (-Dchat.db.offerTimeoutMs)
+    public int dbOfferTimeoutMs = 0;
+    // segmented message log for random-access replay (-Dchat.log.enabled, -Dchat.log.dir)
+    public boolean logEnabled = true;
+    public String logDir = "message_log";
+    // segment size (-Dchat.log.segmentMb) and bytes between sparse index entries (-Dchat.log.indexIntervalBytes)
+    public int logSegmentMb = 16;
+    public int logIndexIntervalBytes = 4096;
+    // retention: closed segments beyond this count or older than this are deleted, 0 = no limit
+    // (-Dchat.log.maxSegments, -Dchat.log.retentionHours)
+    public int logMaxSegments = 0;
+    public int logRetentionHours = 24 * 7;
+    // newest segments kept uncompressed; older ones are block-compressed in the background, 0 = never
+    // (-Dchat.log.hotSegments, -Dchat.log.blockKb, -Dchat.log.compressionLevel 1-9)
+    public int logHotSegments = 2;
+    public int logBlockKb = 64;
+    public int logCompressionLevel = 6;
+    // full-text index over the message log (-Dchat.search.enabled), snapshotted every N new lines
+    // (-Dchat.search.snapshotLines); needs the message log
+    public boolean searchEnabled = true;
+    public int searchSnapshotLines = 100000;
+    // direct messages kept for each offline user (-Dchat.dm.offlineLimit, oldest dropped first)
+    // and how many offline users may have waiting messages (-Dchat.dm.maxMailboxes)
+    public int dmOfflineLimit = 100;
+    public int dmMaxMailboxes = 10000;
+    // broadcast fan-out threads, each serving its own share of the clients, 0 = fan out on the
+    // sender's thread (-Dchat.dispatch.shards) and broadcasts each may fall behind (-Dchat.dispatch.queue)
+    public int dispatchShards = Runtime.getRuntime().availableProcessors();
+    public int dispatchQueue = 65536;
+    // clustering: port other nodes connect to, 0 = off (-Dchat.cluster.port), nodes to dial as
+    // "host:port,..." (-Dchat.cluster.peers) and this node's id, default "node-<chat port>" (-Dchat.cluster.node)
+    public int clusterPort = 0;
+    public String clusterPeers = "";
+    public String clusterNode;
+    // own messages kept for peers that reconnect (-Dchat.cluster.replay) and frames a peer link
+    // may fall behind before it is dropped and reconnected (-Dchat.cluster.queue)
+    public int clusterReplay = 10000;
+    public int clusterQueue = 65536;
+    // whether clients may switch to the binary framed protocol (-Dchat.frames.enabled) and
+    // may get large payloads deflated (-Dchat.frames.compress)
+    public boolean framesEnabled = true;
+    public boolean framesCompress = true;
+    // console log level (-Dchat.logging.level=error|warn|info|debug|trace); every chat line is
+    // logged at debug, and below that, with no listener registered, inbound lines are relayed
+    // without ever being decoded into Strings
+    public Log.Level logLevel = Log.Level.INFO;
+    // messages each server listener (e.g. the GUI) may fall behind (-Dchat.listeners.queue), what
+    // happens when it does (-Dchat.listeners.policy=drop_oldest|drop_newest|disconnect, which
+    // detaches the listener) and most messages handed over in one batch (-Dchat.listeners.maxBatch)
+    public int listenerQueue = 10000;
+    public OutboundQueue.Policy listenerPolicy = OutboundQueue.Policy.DROP_OLDEST;
+    public int listenerMaxBatch = 512;
+    // loopback port serving a plain-text stats report, 0 = off (-Dchat.stats.port)
+    public int statsPort = 0;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig c = new ServerConfig();
+        c.mode = parseMode(System.getProperty("chat.mode"), c.mode);
+        c.eventLoops = Math.max(1, Integer.getInteger("chat.nio.loops", c.eventLoops));
+        c.pinThresholdMs = Long.getLong("chat.virtual.pinThresholdMs", c.pinThresholdMs);
+        c.virtualReportSeconds = Integer.getInteger("chat.virtual.reportSeconds", c.virtualReportSeconds);
+        c.outboundCapacity = Integer.getInteger("chat.outbound.capacity", c.outboundCapacity);
+        c.outboundPolicy = parsePolicy(System.getProperty("chat.outbound.policy"), c.outboundPolicy);
+        c.disconnectAfter = Integer.getInteger("chat.outbound.disconnectAfter", c.disconnectAfter);
+        c.outboundMaxBatch = Math.max(1, Integer.getInteger("chat.outbound.maxBatch", c.outboundMaxBatch));
+        c.outboundMaxLatencyMs = Integer.getInteger("chat.outbound.maxLatencyMs", c.outboundMaxLatencyMs);
+        c.journalFsync = parseFsync(System.getProperty("chat.journal.fsync"), c.journalFsync);
+        c.journalFsyncMs = Integer.getInteger("chat.journal.fsyncMs", c.journalFsyncMs);
+        c.journalCapacity = Integer.getInteger("chat.journal.capacity", c.journalCapacity);
+        c.journalRotateMb = Integer.getInteger("chat.journal.rotateMb", c.journalRotateMb);
+        c.dbUrl = System.getProperty("chat.db.url");
+        c.dbUser = System.getProperty("chat.db.user");
+        c.dbPassword = System.getProperty("chat.db.password");
+        c.dbPoolSize = Integer.getInteger("chat.db.poolSize", c.dbPoolSize);
+        c.dbQueueCapacity = Integer.getInteger("chat.db.queue", c.dbQueueCapacity);
+        c.dbBatchSize = Integer.getInteger("chat.db.batchSize", c.dbBatchSize);
+        c.dbFlushMs = Integer.getInteger("chat.db.flushMs", c.dbFlushMs);
+        c.dbOfferTimeoutMs = Integer.getInteger("chat.db.offerTimeoutMs", c.dbOfferTimeoutMs);
+        c.logEnabled = Boolean.parseBoolean(System.getProperty("chat.log.enabled", Boolean.toString(c.logEnabled)));
+        c.logDir = System.getProperty("chat.log.dir", c.logDir);
+        c.logSegmentMb = Integer.getInteger("chat.log.segmentMb", c.logSegmentMb);
+        c.logIndexIntervalBytes = Integer.getInteger("chat.log.indexIntervalBytes", c.logIndexIntervalBytes);
+        c.logMaxSegments = Integer.getInteger("chat.log.maxSegments", c.logMaxSegments);
+        c.logRetentionHours = Integer.getInteger("chat.log.retentionHours", c.logRetentionHours);
+        c.logHotSegments = Integer.getInteger("chat.log.hotSegments", c.logHotSegments);
+        c.logBlockKb = Integer.getInteger("chat.log.blockKb", c.logBlockKb);
+        c.logCompressionLevel = Integer.getInteger("chat.log.compressionLevel", c.logCompressionLevel);
+        c.searchEnabled = Boolean.parseBoolean(System.getProperty("chat.search.enabled", Boolean.toString(c.searchEnabled)));
+        c.searchSnapshotLines = Integer.getInteger("chat.search.snapshotLines", c.searchSnapshotLines);
+        c.dmOfflineLimit = Integer.getInteger("chat.dm.offlineLimit", c.dmOfflineLimit);
+        c.dmMaxMailboxes = Integer.getInteger("chat.dm.maxMailboxes", c.dmMaxMailboxes);
+        c.dispatchShards = Math.max(0, Integer.getInteger("chat.dispatch.shards", c.dispatchShards));
+        c.dispatchQueue = Integer.getInteger("chat.dispatch.queue", c.dispatchQueue);
+        c.clusterPort = Integer.getInteger("chat.cluster.port", c.clusterPort);
+        c.clusterPeers = System.getProperty("chat.cluster.peers", c.clusterPeers);
+        c.clusterNode = System.getProperty("chat.cluster.node", c.clusterNode);
+        c.clusterReplay = Integer.getInteger("chat.cluster.replay", c.clusterReplay);
+        c.clusterQueue = Integer.getInteger("chat.cluster.queue", c.clusterQueue);
+        c.framesEnabled = Boolean.parseBoolean(System.getProperty("chat.frames.enabled", Boolean.toString(c.framesEnabled)));
+        c.logLevel = parseLevel(System.getProperty("chat.logging.level"), c.logLevel);
+        c.framesCompress = Boolean.parseBoolean(System.getProperty("chat.frames.compress", Boolean.toString(c.framesCompress)));
+        c.listenerQueue = Integer.getInteger("chat.listeners.queue", c.listenerQueue);
+        c.listenerPolicy = parsePolicy(System.getProperty("chat.listeners.policy"), c.listenerPolicy);
+        c.listenerMaxBatch = Integer.getInteger("chat.listeners.maxBatch", c.listenerMaxBatch);
+        c.statsPort = Integer.getInteger("chat.stats.port", c.statsPort);
+        return c;
+    }
+
+    public static OutboundQueue.Policy parsePolicy(String value, OutboundQueue.Policy fallback) {
+        if (value == null || value.trim().isEmpty()) return fallback;
+        try {
+            return OutboundQueue.Policy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("[Server]: Unknown outbound policy '" + value + "', using " + fallback);
+            return fallback;
+        }
+    }
+
+    public static HistoryJournal.FsyncPolicy parseFsync(String value, HistoryJournal.FsyncPolicy fallback) {
+        if (value == null || value.trim().isEmpty()) return fallback;
+        try {
+            return HistoryJournal.FsyncPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("[Server]: Unknown fsync policy '" + value + "', using " + fallback);
+            return fallback;
+        }
+    }
+
+    public static Mode parseMode(String value, Mode fallback) {
+        if (value == null || value.trim().isEmpty()) return fallback;
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("[Server]: Unknown mode '" + value + "', using " + fallback);
+            return fallback;
+        }
+    }
+
+    public static Log.Level parseLevel(String value, Log.Level fallback) {
+        if (value == null || value.trim().isEmpty()) return fallback;
+        try {
+            return Log.Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("[Server]: Unknown logging level '" + value + "', using " + fallback);
+            return fallback;
+        }
+    }
+}
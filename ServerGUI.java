@@ -4,12 +4,20 @@ import javax.swing.text.*;
 import java.io.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Simple server GUI to start server, show logs, and send server-originated messages.
  * The server GUI will prompt for a username (server name) and display logs in a text area.
  */
 public class ServerGUI extends JFrame implements MessageListener {
+    // lines kept in the log pane (-Dchat.gui.maxLines); older ones are trimmed from the top
+    private static final int MAX_LINES = Math.max(100, Integer.getInteger("chat.gui.maxLines", 5000));
+    // how often queued messages are put into the pane, one batch per frame
+    private static final int FRAME_MS = 16;
+
     // replaced JTextArea with JTextPane (logPane)
     private JTextField portField;
     private JButton startButton;
@@ -20,6 +28,17 @@ public class ServerGUI extends JFrame implements MessageListener {
     private JButton serverSendButton;
     private JTextPane logPane;
     private JButton viewHistoryButton;
+    private JButton searchButton;
+    private JButton statsButton;
+    private JDialog statsDialog;
+    private JLabel droppedLabel;
+    private Style regularStyle, serverStyle, selfStyle, otherStyle, systemStyle;
+
+    // messages waiting for the next frame; never more than MAX_LINES, as more would be trimmed anyway
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong droppedFromView = new AtomicLong();
+    private long shownDropped;
 
     public ServerGUI() {
         setTitle("Chat Server");
@@ -51,6 +70,11 @@ public class ServerGUI extends JFrame implements MessageListener {
     logPane.setBorder(new EmptyBorder(8,8,8,8));
     logPane.setFont(new Font("Segoe UI", Font.PLAIN, 13));
     JScrollPane scrollPane = new JScrollPane(logPane);
+    createStyles(logPane.getStyledDocument());
+    droppedLabel = new JLabel();
+    droppedLabel.setForeground(UIStyles.COLOR_SYSTEM);
+    droppedLabel.setVisible(false);
+    new javax.swing.Timer(FRAME_MS, e -> flushPending()).start();
 
     portField = new JTextField("12345", 6);
     serverNameField = new JTextField("Server", 10);
@@ -64,6 +88,12 @@ public class ServerGUI extends JFrame implements MessageListener {
     viewHistoryButton = new JButton("View History");
     viewHistoryButton.addActionListener(e -> showServerHistory());
 
+    searchButton = new JButton("Search");
+    searchButton.addActionListener(e -> searchHistory());
+
+    statsButton = new JButton("Stats");
+    statsButton.addActionListener(e -> showStats());
+
     stopButton = new JButton("Stop Server");
     stopButton.setBackground(new Color(0xD64545));
     stopButton.setForeground(Color.WHITE);
@@ -75,6 +105,8 @@ public class ServerGUI extends JFrame implements MessageListener {
     top.add(new JLabel("Port:")); top.add(portField);
     top.add(startButton); top.add(stopButton);
     top.add(viewHistoryButton);
+    top.add(searchButton);
+    top.add(statsButton);
 
         // Message input area for server operator
         JTextField serverInput = new JTextField();
@@ -89,6 +121,7 @@ public class ServerGUI extends JFrame implements MessageListener {
     serverInput.setFont(new Font("Segoe UI", Font.PLAIN, 14));
     bottom.add(serverInput, BorderLayout.CENTER);
     bottom.add(serverSend, BorderLayout.EAST);
+    bottom.add(droppedLabel, BorderLayout.SOUTH);
 
         getContentPane().setLayout(new BorderLayout());
         getContentPane().add(top, BorderLayout.NORTH);
@@ -110,6 +143,17 @@ public class ServerGUI extends JFrame implements MessageListener {
             JOptionPane.showMessageDialog(this, "Server not started yet.", "History", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
+        String[] options = {"Last hour", "Everything"};
+        int choice = JOptionPane.showOptionDialog(this, "Which messages?", "History", JOptionPane.DEFAULT_OPTION,
+                JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+        if (choice < 0) return;
+        if (choice == 0) {
+            // seek straight to the right segment of the message log instead of reading the whole file
+            StringBuilder sb = new StringBuilder();
+            server.replaySince(System.currentTimeMillis() - 60 * 60 * 1000L, r -> sb.append(r.text).append('\n'));
+            showTextDialog("Server History - last hour", sb.toString());
+            return;
+        }
         File hf = server.getHistoryFile();
         if (hf == null || !hf.exists()) {
             JOptionPane.showMessageDialog(this, "No server history found.", "History", JOptionPane.INFORMATION_MESSAGE);
@@ -117,18 +161,85 @@ public class ServerGUI extends JFrame implements MessageListener {
         }
         try {
             StringBuilder sb = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(new FileReader(hf))) {
-                String l;
-                while ((l = br.readLine()) != null) {
-                    sb.append(l).append('\n');
-                }
-            }
+            HistoryArchive.readAll(hf, l -> sb.append(l).append('\n'));
             showTextDialog("Server History", sb.toString());
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Failed to read history: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
+    private void searchHistory() {
+        if (server == null) {
+            JOptionPane.showMessageDialog(this, "Server not started yet.", "Search", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        String text = JOptionPane.showInputDialog(this,
+                "Words to find, optionally user:name since:2h from:yyyy-MM-dd to:yyyy-MM-dd limit:N", "Search",
+                JOptionPane.QUESTION_MESSAGE);
+        if (text == null || text.trim().isEmpty()) return;
+        java.util.List<MessageLog.Record> results;
+        long t0 = System.nanoTime();
+        try {
+            results = server.search(SearchIndex.Query.parse(text));
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Search", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (results == null) {
+            JOptionPane.showMessageDialog(this, "Search is disabled (needs the message log).", "Search", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        long micros = (System.nanoTime() - t0) / 1000;
+        StringBuilder sb = new StringBuilder();
+        for (MessageLog.Record r : results) sb.append(SearchIndex.format(r)).append('\n');
+        showTextDialog("Search: " + results.size() + " results in " + micros / 1000.0 + " ms", sb.toString());
+    }
+
+    // live view of server.statsReport(), refreshed every second while the window is open
+    private void showStats() {
+        if (server == null) {
+            JOptionPane.showMessageDialog(this, "Server not started yet.", "Stats", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        if (statsDialog != null) {
+            statsDialog.toFront();
+            return;
+        }
+        JTextArea area = new JTextArea(14, 80);
+        area.setEditable(false);
+        area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        Runnable refresh = () -> {
+            Server s = server;
+            area.setText(s != null ? s.statsReport() : "Server not running");
+        };
+        refresh.run();
+        javax.swing.Timer timer = new javax.swing.Timer(1000, e -> refresh.run());
+        JButton reset = new JButton("Reset histograms");
+        reset.addActionListener(e -> {
+            Server s = server;
+            if (s != null) s.resetStats();
+            refresh.run();
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(reset);
+
+        statsDialog = new JDialog(this, "Server Stats", false);
+        statsDialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        statsDialog.getContentPane().add(new JScrollPane(area), BorderLayout.CENTER);
+        statsDialog.getContentPane().add(buttons, BorderLayout.SOUTH);
+        statsDialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+                statsDialog = null;
+            }
+        });
+        statsDialog.pack();
+        statsDialog.setLocationRelativeTo(this);
+        statsDialog.setVisible(true);
+        timer.start();
+    }
+
     private void showTextDialog(String title, String text) {
         JTextArea area = new JTextArea(text);
         area.setEditable(false);
@@ -181,63 +292,101 @@ public class ServerGUI extends JFrame implements MessageListener {
         appendMessage(message);
     }
 
+    // a batch from the server is only queued here; the next frame puts it into the pane
+    @Override
+    public void onMessages(java.util.List<String> messages) {
+        for (String msg : messages) enqueue(msg);
+    }
+
     private void appendMessage(String msg) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                StyledDocument doc = logPane.getStyledDocument();
-                Style defaultStyle = doc.getStyle(StyleContext.DEFAULT_STYLE);
-                Style regular = doc.getStyle("regular");
-                if (regular == null) {
-                    regular = doc.addStyle("regular", defaultStyle);
-                    StyleConstants.setFontFamily(regular, "Segoe UI");
-                    StyleConstants.setFontSize(regular, 13);
-                }
+        enqueue(msg);
+    }
 
-                Style serverStyle = doc.getStyle("server");
-                if (serverStyle == null) {
-                    serverStyle = doc.addStyle("server", regular);
-                    StyleConstants.setForeground(serverStyle, UIStyles.COLOR_SERVER);
-                    StyleConstants.setItalic(serverStyle, true);
-                }
-                Style selfStyle = doc.getStyle("self");
-                if (selfStyle == null) {
-                    selfStyle = doc.addStyle("self", regular);
-                    StyleConstants.setForeground(selfStyle, UIStyles.COLOR_SELF);
-                    StyleConstants.setBold(selfStyle, true);
-                }
-                Style otherStyle = doc.getStyle("other");
-                if (otherStyle == null) {
-                    otherStyle = doc.addStyle("other", regular);
-                    StyleConstants.setForeground(otherStyle, UIStyles.COLOR_OTHER);
-                }
-                Style systemStyle = doc.getStyle("system");
-                if (systemStyle == null) {
-                    systemStyle = doc.addStyle("system", regular);
-                    StyleConstants.setForeground(systemStyle, UIStyles.COLOR_SYSTEM);
-                }
+    // called from any thread; under overload the oldest queued lines are dropped from view
+    private void enqueue(String msg) {
+        pending.add(msg);
+        if (pendingCount.incrementAndGet() > MAX_LINES && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+            droppedFromView.incrementAndGet();
+        }
+    }
 
-                // Decide style based on message prefix
-                Style chosen = regular;
-                if (msg.startsWith("[Server GUI]:") || msg.startsWith("[Server]:")) {
-                    chosen = systemStyle; // internal server logs
-                } else if (msg.startsWith("[")) {
-                    int end = msg.indexOf("]");
-                    if (end > 1) {
-                        String name = msg.substring(1, end);
-                        String serverName = serverNameField.getText().trim();
-                        if (!serverName.isEmpty() && name.equals(serverName)) chosen = selfStyle;
-                        else if (name.equalsIgnoreCase("Server")) chosen = serverStyle;
-                        else chosen = otherStyle;
-                    }
-                }
+    private void createStyles(StyledDocument doc) {
+        Style defaultStyle = doc.getStyle(StyleContext.DEFAULT_STYLE);
+        regularStyle = doc.addStyle("regular", defaultStyle);
+        StyleConstants.setFontFamily(regularStyle, "Segoe UI");
+        StyleConstants.setFontSize(regularStyle, 13);
+
+        serverStyle = doc.addStyle("server", regularStyle);
+        StyleConstants.setForeground(serverStyle, UIStyles.COLOR_SERVER);
+        StyleConstants.setItalic(serverStyle, true);
+        selfStyle = doc.addStyle("self", regularStyle);
+        StyleConstants.setForeground(selfStyle, UIStyles.COLOR_SELF);
+        StyleConstants.setBold(selfStyle, true);
+        otherStyle = doc.addStyle("other", regularStyle);
+        StyleConstants.setForeground(otherStyle, UIStyles.COLOR_OTHER);
+        systemStyle = doc.addStyle("system", regularStyle);
+        StyleConstants.setForeground(systemStyle, UIStyles.COLOR_SYSTEM);
+    }
 
-                doc.insertString(doc.getLength(), msg + "\n", chosen);
-                logPane.setCaretPosition(doc.getLength());
-            } catch (BadLocationException e) {
-                // fallback
-                logPane.setText(logPane.getText() + msg + "\n");
+    // Decide style based on message prefix
+    private Style styleFor(String msg, String serverName) {
+        if (msg.startsWith("[Server GUI]:") || msg.startsWith("[Server]:")) {
+            return systemStyle; // internal server logs
+        } else if (msg.startsWith("[")) {
+            int end = msg.indexOf("]");
+            if (end > 1) {
+                String name = msg.substring(1, end);
+                if (!serverName.isEmpty() && name.equals(serverName)) return selfStyle;
+                else if (name.equalsIgnoreCase("Server")) return serverStyle;
+                else return otherStyle;
             }
-        });
+        }
+        return regularStyle;
+    }
+
+    /**
+     * Runs once per frame on the EDT: appends everything queued since the last frame, one
+     * insert per run of lines with the same style, then trims the pane to MAX_LINES.
+     */
+    private void flushPending() {
+        long dropped = droppedFromView.get();
+        if (dropped != shownDropped) {
+            shownDropped = dropped;
+            droppedLabel.setText(dropped + " messages dropped from view");
+            droppedLabel.setVisible(true);
+        }
+        if (pending.isEmpty()) return;
+        StyledDocument doc = logPane.getStyledDocument();
+        String serverName = serverNameField.getText().trim();
+        StringBuilder run = new StringBuilder();
+        Style runStyle = null;
+        try {
+            String msg;
+            while ((msg = pending.poll()) != null) {
+                pendingCount.decrementAndGet();
+                Style style = styleFor(msg, serverName);
+                if (style != runStyle && run.length() > 0) {
+                    doc.insertString(doc.getLength(), run.toString(), runStyle);
+                    run.setLength(0);
+                }
+                runStyle = style;
+                run.append(msg).append('\n');
+            }
+            if (run.length() > 0) doc.insertString(doc.getLength(), run.toString(), runStyle);
+            trimHead(doc);
+        } catch (BadLocationException e) {
+            // fallback
+            logPane.setText(logPane.getText() + run);
+        }
+        logPane.setCaretPosition(doc.getLength());
+    }
+
+    // removes the oldest lines in one edit; each line is a paragraph, plus the empty last one
+    private void trimHead(StyledDocument doc) throws BadLocationException {
+        Element root = doc.getDefaultRootElement();
+        int excess = root.getElementCount() - 1 - MAX_LINES;
+        if (excess > 0) doc.remove(0, root.getElement(excess - 1).getEndOffset());
     }
 
     public static void main(String[] args) {
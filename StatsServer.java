@@ -0,0 +1,70 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain-text stats endpoint on the loopback interface: connect and it writes the current
+ * Server.statsReport(), then closes (e.g. "nc localhost 12346"). A client that sends "reset"
+ * within the first moment also clears the latency histograms after the report.
+ */
+public class StatsServer {
+    // how long a connection may take to send a command before it just gets the report
+    private static final int COMMAND_WAIT_MS = 200;
+
+    private final Server server;
+    private final int port;
+    private ServerSocket listener;
+    private Thread thread;
+
+    public StatsServer(Server server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        listener = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        thread = new Thread(this::acceptLoop, "stats-listener");
+        thread.setDaemon(true);
+        thread.start();
+        Log.info("[Server]: Stats on localhost:" + listener.getLocalPort());
+    }
+
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            try (Socket s = listener.accept()) {
+                s.setSoTimeout(COMMAND_WAIT_MS);
+                String command = readCommand(s.getInputStream());
+                Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+                out.write(server.statsReport());
+                if ("reset".equals(command)) {
+                    server.resetStats();
+                    out.write("histograms reset\n");
+                }
+                out.flush();
+            } catch (IOException e) {
+                if (!listener.isClosed()) Log.error("[Server]: Stats connection failed - " + e.getMessage());
+            }
+        }
+    }
+
+    // the first line the client sent, or null if it sent nothing in time
+    private static String readCommand(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try {
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n' && sb.length() < 64) {
+                if (c != '\r') sb.append((char) c);
+            }
+        } catch (SocketTimeoutException e) {
+            if (sb.length() == 0) return null;
+        }
+        return sb.toString().trim().toLowerCase();
+    }
+
+    public void close() {
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
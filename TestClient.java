@@ -1,10 +1,56 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Diagnostic client and load generator.
+ *
+ *   java TestClient [host [port]]                  connect once, say hello, print what comes back
+ *   java -Dload.clients=2000 TestClient load [host [port]]   run a load test
+ *
+ * A load test opens load.clients connections from a few selector threads, lets load.senders
+ * of them send load.rate lines per second in total to the lobby, and reads everything every
+ * connection receives. Each line carries its sender, a per-sender sequence number and its
+ * send time (System.nanoTime(), so sender and receivers must be this one process), which
+ * gives the end-to-end latency of every delivery and shows lines the server dropped as gaps.
+ * Settings (-Dload.*, defaults in brackets):
+ *   clients [1000]       connections, including the senders
+ *   senders [10]         connections that send
+ *   rate [1000]          lines per second, all senders together
+ *   size [100]           bytes of text per line
+ *   seconds [30]         how long the senders send, after warmupSeconds [5] not counted
+ *   churn [0]            connections per second closed and replaced by new ones
+ *   slow [0]             fraction of connections that read at most slowBytesPerSec [2048]
+ *   connectRate [500]    new connections per second while ramping up
+ *   loops [cores]        selector threads
+ *   drainSeconds [3]     how long to wait for deliveries after the senders stop
+ */
 public class TestClient {
     public static void main(String[] args) {
-        String host = "localhost";
-        int port = 12345;
+        if (args.length > 0 && args[0].equals("load")) {
+            String host = args.length > 1 ? args[1] : "localhost";
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : 12345;
+            try {
+                new Load(host, port).run();
+            } catch (Exception e) {
+                System.err.println("[TestClient]: Load test failed - " + e);
+                e.printStackTrace();
+            }
+            return;
+        }
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        diagnose(host, port);
+    }
+
+    private static void diagnose(String host, int port) {
         String username = "DiagClient";
         try (Socket s = new Socket(host, port);
              BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
@@ -28,4 +74,457 @@ public class TestClient {
             e.printStackTrace();
         }
     }
+
+    /**
+     * One load test run; see the class comment for the settings.
+     */
+    static final class Load {
+        // a load line's text starts with this, then "<sender> <seq> <sendNanos> " and padding
+        static final byte[] MARK = "]: L ".getBytes(StandardCharsets.US_ASCII);
+
+        final InetSocketAddress address;
+        final int clients = Integer.getInteger("load.clients", 1000);
+        final int senders = Math.max(1, Math.min(clients, Integer.getInteger("load.senders", 10)));
+        final int rate = Math.max(1, Integer.getInteger("load.rate", 1000));
+        final int size = Math.max(0, Integer.getInteger("load.size", 100));
+        final int seconds = Integer.getInteger("load.seconds", 30);
+        final int warmupSeconds = Integer.getInteger("load.warmupSeconds", 5);
+        final double churn = Double.parseDouble(System.getProperty("load.churn", "0"));
+        final double slow = Double.parseDouble(System.getProperty("load.slow", "0"));
+        final int slowBytesPerSec = Integer.getInteger("load.slowBytesPerSec", 2048);
+        final int connectRate = Math.max(1, Integer.getInteger("load.connectRate", 500));
+        final int loopCount = Math.max(1, Integer.getInteger("load.loops", Runtime.getRuntime().availableProcessors()));
+        final int drainSeconds = Integer.getInteger("load.drainSeconds", 3);
+
+        final Loop[] loops = new Loop[loopCount];
+        final List<Conn> conns = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger nextId = new AtomicInteger();
+        // last sequence number each sender sent
+        final AtomicLong[] sent = new AtomicLong[senders];
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder received = new LongAdder();
+        final AtomicInteger connected = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger churned = new AtomicInteger();
+        final AtomicInteger serverClosed = new AtomicInteger();
+        volatile boolean sending;
+
+        Load(String host, int port) {
+            address = new InetSocketAddress(host, port);
+            for (int i = 0; i < senders; i++) sent[i] = new AtomicLong();
+        }
+
+        void run() throws Exception {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new Loop(this, i);
+                loops[i].thread.start();
+            }
+            System.out.println("[TestClient]: " + clients + " clients (" + slowCount() + " slow), " + senders
+                    + " senders, " + rate + " lines/s of " + size + " bytes for " + seconds + "s, churn "
+                    + churn + "/s, against " + address);
+
+            // ramp up at connectRate and wait until every connection is logged in (or failed)
+            long rampStart = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                pace(rampStart, i, connectRate);
+                open(i < senders ? i : -1, isSlow(i));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (connected.get() + failed.get() < clients && System.nanoTime() < deadline) Thread.sleep(50);
+            System.out.println("[TestClient]: " + connected.get() + " connected, " + failed.get() + " failed in "
+                    + (System.nanoTime() - rampStart) / 1_000_000 + " ms");
+
+            sending = true;
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < senders; i++) {
+                Conn c = conns.get(i);
+                Thread t = new Thread(() -> sendLoop(c), "load-sender-" + i);
+                t.start();
+                threads.add(t);
+            }
+            if (churn > 0) {
+                Thread t = new Thread(this::churnLoop, "load-churn");
+                t.setDaemon(true);
+                t.start();
+            }
+
+            // warm-up, then the measured window with a progress line every 5 seconds
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+            latency.reset();
+            received.reset();
+            long measuredStart = System.nanoTime();
+            long sentAtStart = totalSent();
+            for (int s = 5; s <= seconds; s += 5) {
+                Thread.sleep(5000);
+                progress(s, measuredStart, sentAtStart);
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds % 5));
+            long measuredNanos = System.nanoTime() - measuredStart;
+            long measuredSent = totalSent() - sentAtStart;
+            long measuredReceived = received.sum();
+            sending = false;
+            for (Thread t : threads) t.join();
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(drainSeconds));
+            for (Loop l : loops) l.stop();
+            report(measuredNanos, measuredSent, measuredReceived);
+        }
+
+        private int slowCount() {
+            int n = 0;
+            for (int i = 0; i < clients; i++) if (isSlow(i)) n++;
+            return n;
+        }
+
+        // slow readers are spread evenly over the connections and are never senders
+        private boolean isSlow(int i) {
+            if (i < senders || slow <= 0) return false;
+            return Math.floor(i * slow) != Math.floor((i + 1) * slow);
+        }
+
+        private static void pace(long start, long n, double perSecond) {
+            long due = start + (long) (n * 1e9 / perSecond);
+            long wait = due - System.nanoTime();
+            if (wait > 0) java.util.concurrent.locks.LockSupport.parkNanos(wait);
+        }
+
+        private long totalSent() {
+            long n = 0;
+            for (AtomicLong s : sent) n += s.get();
+            return n;
+        }
+
+        void open(int senderIndex, boolean slowReader) {
+            int id = nextId.getAndIncrement();
+            Conn c = new Conn(id, senderIndex, slowReader, senders);
+            conns.add(c);
+            loops[id % loops.length].submit(() -> loops[id % loops.length].connect(c));
+        }
+
+        private void sendLoop(Conn c) {
+            int k = c.senderIndex;
+            double perSender = (double) rate / senders;
+            long start = System.nanoTime();
+            StringBuilder sb = new StringBuilder(size + 64);
+            for (long seq = 1; sending; seq++) {
+                pace(start, seq - 1, perSender);
+                if (!sending || c.closed) break;
+                sb.setLength(0);
+                sb.append("L ").append(k).append(' ').append(seq).append(' ').append(System.nanoTime()).append(' ');
+                while (sb.length() < size) sb.append('x');
+                sb.append('\n');
+                if (!c.write(sb.toString().getBytes(StandardCharsets.UTF_8))) break;
+                sent[k].set(seq);
+            }
+        }
+
+        private void churnLoop() {
+            Random random = new Random(42);
+            long start = System.nanoTime();
+            for (long n = 0; sending; n++) {
+                pace(start, n, churn);
+                if (!sending) return;
+                Conn victim;
+                synchronized (conns) {
+                    if (conns.size() <= senders) continue;
+                    victim = conns.get(senders + random.nextInt(conns.size() - senders));
+                }
+                if (victim.closed) continue;
+                victim.loop.submit(() -> victim.loop.close(victim, true));
+                churned.incrementAndGet();
+                open(-1, victim.slow);
+            }
+        }
+
+        private void progress(int second, long measuredStart, long sentAtStart) {
+            double elapsed = (System.nanoTime() - measuredStart) / 1e9;
+            System.out.println(String.format("[TestClient]: %3ds  sent %.0f/s  received %.0f lines/s  %d open  p99 %s",
+                    second, (totalSent() - sentAtStart) / elapsed, received.sum() / elapsed, openCount(),
+                    LatencyHistogram.format(latency.percentile(0.99))));
+        }
+
+        private int openCount() {
+            int n = 0;
+            synchronized (conns) {
+                for (Conn c : conns) if (!c.closed && c.loggedIn) n++;
+            }
+            return n;
+        }
+
+        private void report(long measuredNanos, long measuredSent, long measuredReceived) {
+            double secs = measuredNanos / 1e9;
+            long[] dropped = new long[2];
+            long[] undelivered = new long[2];
+            long[] lines = new long[2];
+            int[] behind = new int[2];
+            synchronized (conns) {
+                for (Conn c : conns) {
+                    int kind = c.slow ? 1 : 0;
+                    dropped[kind] += c.gaps;
+                    lines[kind] += c.lines;
+                    // lines a still open connection had not received when the run ended
+                    if (c.closed || !c.loggedIn) continue;
+                    if (c.lines == 0) behind[kind]++;
+                    for (int k = 0; k < senders; k++) {
+                        if (c.lastSeq[k] > 0) undelivered[kind] += Math.max(0, sent[k].get() - c.lastSeq[k]);
+                    }
+                }
+            }
+            System.out.println("[TestClient]: Measured " + String.format("%.1f", secs) + "s: sent "
+                    + measuredSent + " lines (" + String.format("%.0f", measuredSent / secs) + "/s), received "
+                    + measuredReceived + " (" + String.format("%.0f", measuredReceived / secs) + "/s)");
+            System.out.println("[TestClient]: End-to-end latency - " + latency.summary());
+            System.out.println("[TestClient]: Normal readers - "
+                    + lossSummary(lines[0], dropped[0], undelivered[0], behind[0]));
+            if (slowCount() > 0) {
+                System.out.println("[TestClient]: Slow readers - "
+                        + lossSummary(lines[1], dropped[1], undelivered[1], behind[1]));
+            }
+            System.out.println("[TestClient]: Connections - " + nextId.get() + " opened, " + failed.get()
+                    + " failed, " + churned.get() + " churned, " + serverClosed.get() + " closed by the server");
+        }
+
+        // behind: open connections that never got to a live line (e.g. still reading history)
+        private static String lossSummary(long lines, long dropped, long undelivered, int behind) {
+            long expected = lines + dropped + undelivered;
+            return lines + " load lines received in all, " + dropped + " dropped"
+                    + (expected > 0 ? String.format(" (%.3f%%)", 100.0 * dropped / expected) : "")
+                    + ", " + undelivered + " still undelivered at the end"
+                    + (behind > 0 ? ", " + behind + " connections never reached the live stream" : "");
+        }
+    }
+
+    /**
+     * One load connection. Everything but closed, loggedIn and the sender's writes is touched by
+     * its loop thread only.
+     */
+    static final class Conn {
+        final int id;
+        final int senderIndex;
+        final boolean slow;
+        // highest sequence number seen per sender, 0 until its first live line
+        final long[] lastSeq;
+        final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        Loop loop;
+        SocketChannel channel;
+        SelectionKey key;
+        long connectedAt;
+        long lines;
+        long gaps;
+        // slow readers: bytes they may still read in the current tick
+        int budget;
+        volatile boolean loggedIn;
+        volatile boolean closed;
+
+        Conn(int id, int senderIndex, boolean slow, int senders) {
+            this.id = id;
+            this.senderIndex = senderIndex;
+            this.slow = slow;
+            this.lastSeq = new long[senders];
+        }
+
+        // sender thread: the loop only reads this channel, so writing here needs no hand-off
+        boolean write(byte[] line) {
+            ByteBuffer b = ByteBuffer.wrap(line);
+            try {
+                while (b.hasRemaining()) {
+                    if (channel.write(b) == 0) java.util.concurrent.locks.LockSupport.parkNanos(50_000);
+                    if (closed) return false;
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Selector thread for a share of the connections: connects, logs in and reads them.
+     */
+    static final class Loop implements Runnable {
+        private static final long TICK_NANOS = 10_000_000L;
+
+        final Load load;
+        final Thread thread;
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final List<Conn> slowConns = new ArrayList<>();
+        // sender, seq and send time of the line being parsed
+        private final long[] fields = new long[3];
+        volatile boolean running = true;
+
+        Loop(Load load, int index) throws IOException {
+            this.load = load;
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "load-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            selector.wakeup();
+            thread.join(2000);
+        }
+
+        void connect(Conn c) {
+            c.loop = this;
+            try {
+                c.channel = SocketChannel.open();
+                c.channel.configureBlocking(false);
+                c.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (c.slow) c.channel.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+                c.key = c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+                if (c.channel.connect(load.address)) connected(c);
+            } catch (IOException e) {
+                load.failed.incrementAndGet();
+                close(c, false);
+            }
+        }
+
+        private void connected(Conn c) throws IOException {
+            c.channel.finishConnect();
+            ByteBuffer login = ByteBuffer.wrap(("load" + c.id + "\n").getBytes(StandardCharsets.UTF_8));
+            while (login.hasRemaining()) c.channel.write(login);
+            c.connectedAt = System.nanoTime();
+            c.key.interestOps(SelectionKey.OP_READ);
+            if (c.slow) slowConns.add(c);
+            c.loggedIn = true;
+            load.connected.incrementAndGet();
+        }
+
+        void close(Conn c, boolean deliberate) {
+            if (c.closed) return;
+            c.closed = true;
+            if (!deliberate && c.loggedIn) load.serverClosed.incrementAndGet();
+            slowConns.remove(c);
+            try {
+                if (c.channel != null) c.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            long nextTick = System.nanoTime();
+            while (running) {
+                try {
+                    selector.select(TICK_NANOS / 1_000_000);
+                } catch (IOException e) {
+                    System.err.println("[TestClient]: Selector failed - " + e.getMessage());
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+                long now = System.nanoTime();
+                if (now >= nextTick) {
+                    refillSlowReaders();
+                    nextTick = now + TICK_NANOS;
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Conn c = (Conn) key.attachment();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isConnectable()) {
+                            connected(c);
+                        } else if (key.isReadable()) {
+                            read(c);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        if (!c.loggedIn) load.failed.incrementAndGet();
+                        close(c, false);
+                    }
+                }
+            }
+            // the sockets only; the report still counts these connections as open
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void refillSlowReaders() {
+            int perTick = (int) Math.max(1, load.slowBytesPerSec * TICK_NANOS / 1_000_000_000L);
+            for (Conn c : slowConns) {
+                c.budget = perTick;
+                if (c.key.isValid() && c.key.interestOps() == 0) c.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void read(Conn c) throws IOException {
+            ByteBuffer in = c.in;
+            if (c.slow) in.limit(Math.min(in.capacity(), in.position() + c.budget));
+            int n = c.channel.read(in);
+            in.limit(in.capacity());
+            if (n < 0) {
+                close(c, false);
+                return;
+            }
+            if (c.slow) {
+                c.budget -= n;
+                if (c.budget <= 0) c.key.interestOps(0);
+            }
+            byte[] buf = in.array();
+            int end = in.position();
+            int start = 0;
+            for (int i = 0; i < end; i++) {
+                if (buf[i] != '\n') continue;
+                line(c, buf, start, i);
+                start = i + 1;
+            }
+            if (start == 0 && end == in.capacity()) {
+                // a line longer than the buffer is not a load line
+                in.clear();
+                return;
+            }
+            in.limit(end).position(start);
+            in.compact();
+        }
+
+        // "[name]: L <sender> <seq> <sendNanos> xxx..." somewhere near the start of the line
+        private void line(Conn c, byte[] buf, int start, int end) {
+            int limit = Math.min(end - Load.MARK.length, start + 128);
+            int at = -1;
+            for (int i = start; i <= limit && at < 0; i++) {
+                if (buf[i] != ']') continue;
+                int j = 0;
+                while (j < Load.MARK.length && buf[i + j] == Load.MARK[j]) j++;
+                if (j == Load.MARK.length) at = i + j;
+            }
+            if (at < 0) return;
+            int p = at;
+            for (int f = 0; f < 3; f++) {
+                long v = 0;
+                int digits = 0;
+                while (p < end && buf[p] >= '0' && buf[p] <= '9') {
+                    v = v * 10 + (buf[p++] - '0');
+                    digits++;
+                }
+                if (digits == 0 || (f < 2 && (p >= end || buf[p] != ' '))) return;
+                fields[f] = v;
+                p++;
+            }
+            int k = (int) fields[0];
+            long seq = fields[1];
+            long sentAt = fields[2];
+            // history replayed at login is older than the connection and not counted
+            if (k >= c.lastSeq.length || sentAt < c.connectedAt) return;
+            long last = c.lastSeq[k];
+            if (seq <= last) return;
+            if (last > 0 && seq > last + 1) c.gaps += seq - last - 1;
+            c.lastSeq[k] = seq;
+            c.lines++;
+            load.received.increment();
+            if (load.sending) load.latency.record(System.nanoTime() - sentAt);
+        }
+    }
 }
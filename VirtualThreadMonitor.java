@@ -0,0 +1,108 @@
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Support for the virtual-thread server mode: creates the per-task executor and reports
+ * carrier thread usage plus jdk.VirtualThreadPinned events recorded through JFR. Both are
+ * looked up reflectively so the sources still compile on JDKs without virtual threads or
+ * JFR event streaming (JDK 8 to 13).
+ */
+public class VirtualThreadMonitor {
+    private final AtomicLong pinnedEvents = new AtomicLong();
+    private final AtomicLong pinnedNanos = new AtomicLong();
+    // a jdk.jfr.consumer.RecordingStream
+    private AutoCloseable recording;
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor(), or null when the running JDK
+     * does not provide virtual threads (or needs --enable-preview for them).
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Counts live carrier threads (platform threads backing the virtual-thread scheduler).
+     */
+    public static int carrierThreadCount() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) root = root.getParent();
+        Thread[] threads = new Thread[root.activeCount() + 16];
+        int n = root.enumerate(threads, true);
+        int carriers = 0;
+        for (int i = 0; i < n; i++) {
+            if (threads[i].getClass().getName().equals("jdk.internal.misc.CarrierThread")) carriers++;
+        }
+        return carriers;
+    }
+
+    public long getPinnedEvents() {
+        return pinnedEvents.get();
+    }
+
+    /**
+     * Starts counting pinning events and logs a summary line every reportSeconds.
+     */
+    public void start(Server server, long pinThresholdMs, int reportSeconds) {
+        try {
+            recording = startPinnedRecording(pinThresholdMs);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // JFR event streaming not present in this runtime: carry on without pin counting
+            Log.warn("[Server]: Pinning events unavailable - " + e);
+            recording = null;
+        }
+        if (reportSeconds <= 0) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vthread-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> server.logToListeners("[Server]: " + summary(server.getClientCount())),
+                reportSeconds, reportSeconds, TimeUnit.SECONDS);
+    }
+
+    // new RecordingStream() with jdk.VirtualThreadPinned enabled and counted, started async
+    private AutoCloseable startPinnedRecording(long pinThresholdMs) throws ReflectiveOperationException {
+        Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+        Object stream = streamClass.getConstructor().newInstance();
+        Object settings = streamClass.getMethod("enable", String.class).invoke(stream, "jdk.VirtualThreadPinned");
+        settings.getClass().getMethod("withThreshold", Duration.class).invoke(settings, Duration.ofMillis(pinThresholdMs));
+        Method getDuration = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getDuration");
+        Consumer<Object> onPinned = e -> {
+            pinnedEvents.incrementAndGet();
+            try {
+                pinnedNanos.addAndGet(((Duration) getDuration.invoke(e)).toNanos());
+            } catch (ReflectiveOperationException ignored) {
+            }
+        };
+        streamClass.getMethod("onEvent", String.class, Consumer.class).invoke(stream, "jdk.VirtualThreadPinned", onPinned);
+        streamClass.getMethod("startAsync").invoke(stream);
+        return (AutoCloseable) stream;
+    }
+
+    public String summary(int clients) {
+        return "Virtual threads - clients: " + clients
+                + ", carrier threads: " + carrierThreadCount()
+                + ", pinned events: " + pinnedEvents.get()
+                + " (" + TimeUnit.NANOSECONDS.toMillis(pinnedNanos.get()) + " ms)";
+    }
+
+    public void stop() {
+        if (reporter != null) reporter.shutdownNow();
+        if (recording != null) {
+            try {
+                recording.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+}
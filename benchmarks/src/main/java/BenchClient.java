@@ -0,0 +1,107 @@
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A ClientConnection without a socket: counts what the server hands it, so benchmarks
+ * measure the server's side of a delivery only.
+ */
+public class BenchClient implements ClientConnection {
+    private volatile String username;
+    private volatile byte[] linePrefix;
+    private volatile ChatRoom room;
+    private final Set<ChatRoom> rooms = ConcurrentHashMap.newKeySet();
+    private volatile int shard;
+    private volatile boolean sequenced;
+    private final boolean framed;
+    // written by whichever thread delivers; only read after a benchmark
+    long lines;
+    long bytes;
+
+    public BenchClient(String username, boolean framed) {
+        setUsername(username);
+        this.framed = framed;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+        this.linePrefix = ChatProtocol.linePrefix(username);
+    }
+
+    @Override
+    public byte[] linePrefix() {
+        return linePrefix;
+    }
+
+    @Override
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    @Override
+    public void setSequenced(boolean sequenced) {
+        this.sequenced = sequenced;
+    }
+
+    @Override
+    public boolean isFramed() {
+        return framed;
+    }
+
+    @Override
+    public boolean acceptsDeflate() {
+        return framed;
+    }
+
+    @Override
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    @Override
+    public Set<ChatRoom> getRooms() {
+        return rooms;
+    }
+
+    @Override
+    public int getShard() {
+        return shard;
+    }
+
+    @Override
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    @Override
+    public void sendMessage(String message) {
+        lines++;
+    }
+
+    @Override
+    public void send(ByteBuffer line) {
+        lines++;
+        bytes += line.remaining();
+    }
+
+    @Override
+    public int queueDepth() {
+        return 0;
+    }
+
+    @Override
+    public String flushSummary() {
+        return lines + " lines";
+    }
+}
@@ -0,0 +1,209 @@
+import bench.Fixture;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.StyledDocument;
+
+/**
+ * The server-side half of the benchmarks (see bench.Fixture). Servers here are never started
+ * (no sockets) and run with the console echo, the message log and the search index off, so
+ * only the measured path runs. The history journal stays on, as in production, writing
+ * server_chat_history.txt in the working directory.
+ */
+public final class BenchFixtures {
+    private static final String LINE = "the quick brown fox jumps over the lazy dog";
+
+    private BenchFixtures() {}
+
+    static ServerConfig config() {
+        ServerConfig c = new ServerConfig();
+        c.logLevel = Log.Level.WARN;
+        c.logEnabled = false;
+        c.searchEnabled = false;
+        c.journalFsync = HistoryJournal.FsyncPolicy.NEVER;
+        c.dispatchShards = 0;
+        return c;
+    }
+
+    /**
+     * Logs in count clients named user0, user1, ... Each login prints a line and is announced
+     * to the lobby, so stdout is muted meanwhile to keep the JMH output readable.
+     */
+    static BenchClient[] join(Server server, int count, boolean framed) {
+        BenchClient[] clients = new BenchClient[count];
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < count; i++) {
+                clients[i] = new BenchClient("user" + i, framed);
+                server.clientJoined(clients[i], clients[i].getUsername());
+            }
+        } finally {
+            System.setOut(out);
+        }
+        return clients;
+    }
+
+    private static Server server(int shards) {
+        ServerConfig config = config();
+        config.dispatchShards = shards;
+        return new Server(0, config);
+    }
+
+    /**
+     * Server.broadcast() of a server-wide announcement built from a String.
+     */
+    public static Fixture broadcast(int clients, int shards) {
+        Server server = server(shards);
+        join(server, clients, false);
+        String message = "[Server]: " + LINE;
+        return new Fixture() {
+            public long run() {
+                server.broadcast(message, null);
+                return 0;
+            }
+
+            public void close() {
+                server.stop();
+            }
+        };
+    }
+
+    /**
+     * A chat line as a line-protocol client sends it, relayed from its bytes.
+     */
+    public static Fixture chatLine(int clients, int shards) {
+        Server server = server(shards);
+        BenchClient sender = join(server, clients, false)[0];
+        byte[] line = LINE.getBytes(StandardCharsets.UTF_8);
+        return new Fixture() {
+            public long run() {
+                server.messageReceived(sender, line, line.length);
+                return sender.lines;
+            }
+
+            public void close() {
+                server.stop();
+            }
+        };
+    }
+
+    // a server whose history and lobby ring are already full
+    private static Server fullHistory() {
+        Server server = server(0);
+        for (int i = 0; i < 2000; i++) server.broadcast("[user" + (i % 50) + "]: warm-up line " + i, null);
+        return server;
+    }
+
+    /**
+     * Server.addToHistory() at steady state: every add evicts the oldest line.
+     */
+    public static Fixture addToHistory() {
+        Server server = fullHistory();
+        return new Fixture() {
+            long n;
+
+            public long run() {
+                String message = "[alice]: steady state line " + (n++);
+                return server.addToHistory(message, ChatProtocol.encodeLine(message)).seq;
+            }
+
+            public void close() {
+                server.stop();
+            }
+        };
+    }
+
+    /**
+     * Server.sendHistoryTo(): the lobby's full history replayed to one client.
+     */
+    public static Fixture sendHistoryTo(boolean framed) {
+        Server server = fullHistory();
+        BenchClient reader = new BenchClient("reader", framed);
+        return new Fixture() {
+            public long run() {
+                server.sendHistoryTo(reader);
+                return reader.bytes;
+            }
+
+            public void close() {
+                server.stop();
+            }
+        };
+    }
+
+    /**
+     * DBHelper against an in-memory H2 database: queues rows messages the way broadcasts do
+     * and waits until the batch writers have inserted them all.
+     */
+    public static Fixture dbInsert(int batchSize, int rows) throws SQLException {
+        String url = "jdbc:h2:mem:chat" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        Connection keepAlive = DriverManager.getConnection(url, "sa", "");
+        try (Statement st = keepAlive.createStatement()) {
+            st.execute("CREATE TABLE chat_history (id INT AUTO_INCREMENT PRIMARY KEY,"
+                    + " username VARCHAR(255) NOT NULL, message VARCHAR(4096) NOT NULL,"
+                    + " timestamp TIMESTAMP NOT NULL)");
+        }
+        ServerConfig config = config();
+        config.dbUrl = url;
+        config.dbUser = "sa";
+        config.dbPassword = "";
+        config.dbBatchSize = batchSize;
+        config.dbQueueCapacity = rows * 2;
+        config.dbFlushMs = 1;
+        DBHelper db = new DBHelper(config);
+        return new Fixture() {
+            public long run() {
+                long target = done() + rows;
+                for (int i = 0; i < rows; i++) db.insertMessage("alice", LINE + " " + i);
+                while (done() < target) Thread.onSpinWait();
+                if (db.getFailed() > 0) throw new IllegalStateException("inserts failed: " + db.statsSummary());
+                return target;
+            }
+
+            // rows the writers are finished with, whether inserted, dropped or failed
+            private long done() {
+                return db.getInserted() + db.getDropped() + db.getFailed();
+            }
+
+            public void close() {
+                db.close();
+                try {
+                    keepAlive.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        };
+    }
+
+    /**
+     * ClientGUI's per-line style resolution, headless on a plain document, over a mix of
+     * system, own, server, room and other lines.
+     */
+    public static Fixture resolveStyle() {
+        String[] lines = {
+                "[Client]: Connected to server as alice",
+                "[alice]: hello everyone",
+                "[Server]: bob has joined the chat",
+                "[#dev] [carol]: the build is green",
+                "[dave]: " + LINE,
+                "plain text without a sender",
+        };
+        StyledDocument doc = new DefaultStyledDocument();
+        return new Fixture() {
+            int i;
+
+            public long run() {
+                return ClientGUI.resolveStyle(doc, lines[i++ % lines.length], "alice").hashCode();
+            }
+
+            public void close() {
+            }
+        };
+    }
+}
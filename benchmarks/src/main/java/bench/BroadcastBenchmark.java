@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One line to a lobby of N clients: encoding, history, journal hand-off and queueing the
+ * shared line for every client. With shards > 0 the line goes to the dispatcher instead and
+ * the score settles at the shards' pace once their queues are full.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "10000"})
+    int clients;
+
+    @Param({"0"})
+    int shards;
+
+    private Fixture broadcast;
+    private Fixture chatLine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        broadcast = Fixtures.open("broadcast", clients, shards);
+        chatLine = Fixtures.open("chatLine", clients, shards);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broadcast.close();
+        chatLine.close();
+    }
+
+    // Server.broadcast(): a server-wide announcement built from a String
+    @Benchmark
+    public long broadcast() {
+        return broadcast.run();
+    }
+
+    // a chat line from a line-protocol client, relayed from its bytes
+    @Benchmark
+    public long chatLine() {
+        return chatLine.run();
+    }
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * DBHelper inserts against an embedded (in-memory H2) database. Each call queues ROWS rows
+ * and waits for the batch writers to insert them, so the score is the time per row including
+ * the JDBC batches, not just the enqueue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(DatabaseBenchmark.ROWS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+    static final int ROWS = 1000;
+
+    @Param({"1", "200"})
+    int batchSize;
+
+    private Fixture insert;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        insert = Fixtures.open("dbInsert", batchSize, ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        insert.close();
+    }
+
+    @Benchmark
+    public long insertMessage() {
+        return insert.run();
+    }
+}
@@ -0,0 +1,16 @@
+package bench;
+
+/**
+ * One prepared operation on the chat server. The server's classes live in the default
+ * package, which JMH benchmarks (and any named package) cannot refer to, so BenchFixtures
+ * builds these there and the benchmarks only see this interface.
+ */
+public interface Fixture extends AutoCloseable {
+    /**
+     * Runs the operation once; the result keeps the JIT from dropping the work.
+     */
+    long run();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,27 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Looks up a static factory of the default-package BenchFixtures class. Reflection is used
+ * once per trial, in setup; the measured calls go through the Fixture interface.
+ */
+final class Fixtures {
+    private Fixtures() {}
+
+    static Fixture open(String name, Object... args) {
+        try {
+            for (Method m : Class.forName("BenchFixtures").getMethods()) {
+                if (m.getName().equals(name) && m.getParameterCount() == args.length) {
+                    return (Fixture) m.invoke(null, args);
+                }
+            }
+            throw new IllegalArgumentException("no fixture " + name + " with " + args.length + " arguments");
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("fixture " + name + " failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("fixture " + name + " failed", e);
+        }
+    }
+}
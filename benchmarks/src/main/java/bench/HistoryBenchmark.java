@@ -0,0 +1,60 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The history path once the ring is full: adding a line (every add evicts the oldest) and
+ * replaying the lobby's 1000 lines to a client that logs in, as lines or as frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class HistoryBenchmark {
+    @State(Scope.Benchmark)
+    public static class Add {
+        Fixture fixture;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            fixture = Fixtures.open("addToHistory");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            fixture.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Replay {
+        // frames are built per replay, lines are shared
+        @Param({"false", "true"})
+        boolean framed;
+
+        Fixture fixture;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            fixture = Fixtures.open("sendHistoryTo", framed);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            fixture.close();
+        }
+    }
+
+    @Benchmark
+    public long addToHistory(Add state) {
+        return state.fixture.run();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long sendHistoryTo(Replay state) {
+        return state.fixture.run();
+    }
+}
@@ -0,0 +1,32 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ClientGUI's per-line style resolution: the style lookups plus the sender check.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class StyleBenchmark {
+    private Fixture resolve;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        resolve = Fixtures.open("resolveStyle");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        resolve.close();
+    }
+
+    @Benchmark
+    public long resolveStyle() {
+        return resolve.run();
+    }
+}